@@ -0,0 +1,146 @@
+package com.mika.task.consoledownloader.loadtest;
+
+import org.springframework.util.Assert;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Behaviour of StandInServer for a single resource.
+ * Parsed from query string of requested URL, for example:
+ *
+ *     /file1?size=10m&range=false&chunked=true&rate=200k&latency=50&reset=0.1&total=4m&busy=3
+ *
+ * Parameters that are not specified in query are taken from server defaults.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class Behaviour {
+    /**
+     * Size of synthetic resource in bytes.
+     */
+    final long size;
+
+    /**
+     * Whether Range requests are honoured.
+     */
+    final boolean range;
+
+    /**
+     * Whether response is sent with chunked transfer encoding.
+     */
+    final boolean chunked;
+
+    /**
+     * Whether Content-Length header is sent. If not, and response is not chunked,
+     * the end of body is marked by closing connection.
+     */
+    final boolean length;
+
+    /**
+     * Throughput limit per connection in bytes per second, 0 means limitless.
+     */
+    final long rate;
+
+    /**
+     * Throughput limit of the whole server in bytes per second, 0 means limitless.
+     * More connections do not make downloads faster beyond it.
+     */
+    final long total;
+
+    /**
+     * Maximum number of responses sent at once, the rest are refused with 503. 0 means limitless.
+     */
+    final int busy;
+
+    /**
+     * Delay before response headers are sent, in milliseconds.
+     */
+    final long latency;
+
+    /**
+     * Probability to reset connection in the middle of response body.
+     */
+    final double reset;
+
+    /**
+     * Default behaviour.
+     */
+    static final String DEFAULTS = "size=1m&range=true&chunked=false&length=true&rate=0&latency=0&reset=0&total=0&busy=0";
+
+    private static final int BYTES_IN_KB = 1024;
+
+    private Behaviour(Map<String, String> params) {
+        size = parseSize(params.get("size"));
+        range = Boolean.parseBoolean(params.get("range"));
+        chunked = Boolean.parseBoolean(params.get("chunked"));
+        length = Boolean.parseBoolean(params.get("length"));
+        rate = parseSize(params.get("rate"));
+        latency = Long.parseLong(params.get("latency"));
+        reset = Double.parseDouble(params.get("reset"));
+        total = parseSize(params.get("total"));
+        busy = Integer.parseInt(params.get("busy"));
+
+        Assert.isTrue(size >= 0, "Size must be not negative");
+        Assert.isTrue(rate >= 0, "Rate must be not negative");
+        Assert.isTrue(latency >= 0, "Latency must be not negative");
+        Assert.isTrue(total >= 0, "Total rate must be not negative");
+        Assert.isTrue(busy >= 0, "Busy limit must be not negative");
+    }
+
+    /**
+     * Creates behaviour from query string.
+     *
+     * @param defaults query string with default parameters.
+     * @param query query string of request, may be null.
+     * @return behaviour.
+     */
+    static Behaviour parse(String defaults, String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        putAll(params, DEFAULTS);
+        putAll(params, defaults);
+        putAll(params, query);
+        return new Behaviour(params);
+    }
+
+    private static void putAll(Map<String, String> params, String query) {
+        if (query == null || query.isEmpty()) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            int k = pair.indexOf('=');
+            if (k > 0) {
+                params.put(pair.substring(0, k), pair.substring(k + 1));
+            }
+        }
+    }
+
+    /**
+     * Parses size with optional suffix k, m or g.
+     *
+     * @param val size string, for example "200k".
+     * @return size in bytes.
+     */
+    static long parseSize(String val) {
+        Assert.hasLength(val, "Size must be not empty");
+
+        long multiplier = 1;
+        int k = val.length() - 1;
+        switch (Character.toLowerCase(val.charAt(k))) {
+            case 'k':
+                multiplier = BYTES_IN_KB;
+                break;
+            case 'm':
+                multiplier = BYTES_IN_KB * BYTES_IN_KB;
+                break;
+            case 'g':
+                multiplier = (long) BYTES_IN_KB * BYTES_IN_KB * BYTES_IN_KB;
+                break;
+            default:
+                k++;
+                break;
+        }
+        return Long.parseLong(val.substring(0, k)) * multiplier;
+    }
+}
@@ -0,0 +1,620 @@
+package com.mika.task.consoledownloader.loadtest;
+
+import com.mika.task.consoledownloader.DownloadOrder;
+import com.mika.task.consoledownloader.DownloadResult;
+import com.mika.task.consoledownloader.DownloadTask;
+import com.mika.task.consoledownloader.Durability;
+import com.mika.task.consoledownloader.Priority;
+import com.mika.task.consoledownloader.ProgressListener;
+import com.mika.task.consoledownloader.impl.AimdConnectionController;
+import com.mika.task.consoledownloader.impl.DownloadManagerImpl;
+import org.apache.commons.cli.*;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs DownloadManagerImpl against StandInServer and reports throughput,
+ * latency of single files, CPU time and heap usage. Works fully offline.
+ *
+ * Example: -c 50 -z 64k,1m,20m -n 8 -b "rate=2m&reset=0.05"
+ *
+ * With -p links are downloaded by several Main processes sharing lease folder,
+ * -x kills one of them to check that its links are taken over.
+ *
+ * With -t every link is archive of specified format that is extracted while it
+ * is downloading, both archive and extracted entries are verified.
+ *
+ * With -e every link is written in order to a channel that verifies bytes
+ * on the fly instead of a file.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class LoadTestDriver {
+    /**
+     * Default number of files to download.
+     */
+    private static final int DEFAULT_FILES_COUNT = 20;
+
+    /**
+     * Default sizes of files, used in turn.
+     */
+    private static final String DEFAULT_SIZES = "64k,1m,8m";
+
+    /**
+     * Default number of downloading threads.
+     */
+    private static final int DEFAULT_THREADS_COUNT = 5;
+
+    /**
+     * Lease timeout of worker processes, short to take over leases of killed worker quickly.
+     */
+    private static final long WORKER_LEASE_TIMEOUT = 5000;
+
+    /**
+     * Number of entries in every generated archive.
+     */
+    private static final int ARCHIVE_ENTRIES_COUNT = 4;
+
+    /**
+     * Size of buffer to generate archive entries.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Value of durability option that downloads the same files with every durability.
+     */
+    private static final String COMPARE = "compare";
+
+    /**
+     * Number of times every durability is measured in comparison, the best time is reported.
+     */
+    private static final int COMPARE_ROUNDS = 3;
+
+    private static final int MILLISECONDS_IN_SECOND = 1000;
+
+    private static final int NANOSECONDS_IN_MILLISECOND = 1000000;
+
+    /**
+     * Logger to log messages.
+     */
+    private static final ch.qos.logback.classic.Logger LOGGER =
+            (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(LoadTestDriver.class);
+
+    /**
+     * Main method of load test.
+     * @param args input parameters for load test
+     * @throws Exception if load test could not be run
+     */
+    public static void main(String[] args) throws Exception {
+        String filesCount = "c";
+        String sizes = "z";
+        String nThreads = "n";
+        String sLim = "l";
+        String behaviour = "b";
+        String order = "s";
+        String keep = "k";
+        String processes = "p";
+        String kill = "x";
+        String commit = "u";
+        String adaptive = "a";
+        String archive = "t";
+        String stream = "e";
+
+        Options options = new Options();
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Number of files to download").create(filesCount));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Comma separated file sizes, used in turn").create(sizes));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Download threads count").create(nThreads));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Download speed limit").create(sLim));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Server behaviour in query string format").create(behaviour));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Download order: manifest, shortest or largest").create(order));
+        options.addOption(OptionBuilder.hasArg(false).withDescription("Keep downloaded files").create(keep));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Number of worker processes sharing links").create(processes));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Kill one worker process after specified milliseconds").create(kill));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Durability of completed files: none, batch, sync, or compare to download the same files with each").create(commit));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Adapt connections per host, keep learned counts in specified file").create(adaptive));
+        options.addOption(OptionBuilder.hasArg(true).withDescription("Download archives of specified format and extract them: tar, tar.gz, tar.bz2, tar.zst or zip").create(archive));
+        options.addOption(OptionBuilder.hasArg(false).withDescription("Write links in order to channels instead of files").create(stream));
+
+        CommandLine cmd;
+        try {
+            cmd = new BasicParser().parse(options, args);
+        } catch (ParseException exp) {
+            LOGGER.error("Parsing failed.  Reason: {}", exp.getMessage());
+            new HelpFormatter().printHelp("loadTest", options);
+            System.exit(1);
+            return;
+        }
+
+        int count = Integer.parseInt(cmd.getOptionValue(filesCount, String.valueOf(DEFAULT_FILES_COUNT)));
+        String[] sizeList = cmd.getOptionValue(sizes, DEFAULT_SIZES).split(",");
+        int threadsCount = Integer.parseInt(cmd.getOptionValue(nThreads, String.valueOf(DEFAULT_THREADS_COUNT)));
+        long speedLimit = cmd.hasOption(sLim) ? Behaviour.parseSize(cmd.getOptionValue(sLim)) : 0;
+        int workersCount = Integer.parseInt(cmd.getOptionValue(processes, "1"));
+        DownloadOrder downloadOrder = DownloadOrder.fromString(cmd.getOptionValue(order, "manifest"));
+        if (downloadOrder == null) {
+            LOGGER.error("Incorrect download order specified");
+            System.exit(1);
+        }
+        boolean compareDurabilities = COMPARE.equals(cmd.getOptionValue(commit));
+        Durability durability = compareDurabilities ? Durability.BATCH
+                : Durability.fromString(cmd.getOptionValue(commit, "batch"));
+        if (durability == null) {
+            LOGGER.error("Incorrect durability specified");
+            System.exit(1);
+        }
+
+        String archiveFormat = cmd.getOptionValue(archive);
+        if (archiveFormat != null && !Arrays.asList("tar", "tar.gz", "tar.bz2", "tar.zst", "zip").contains(archiveFormat)) {
+            LOGGER.error("Incorrect archive format specified");
+            System.exit(1);
+        }
+        if (cmd.hasOption(stream) && (archiveFormat != null || workersCount > 1)) {
+            LOGGER.error("Links written to channels can not be archives or shared by processes");
+            System.exit(1);
+        }
+        if (compareDurabilities && (cmd.hasOption(stream) || workersCount > 1)) {
+            LOGGER.error("Durabilities are compared for files downloaded by one process");
+            System.exit(1);
+        }
+
+        StandInServer server = new StandInServer(0, cmd.getOptionValue(behaviour));
+        Thread serverThread = new Thread(server, "stand-in-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        Path workDir = Files.createTempDirectory("loadtest");
+        Path outDir = Files.createDirectory(workDir.resolve("out"));
+        Path links = workDir.resolve("links.txt");
+
+        // files to check against StandInServer.contentByte and archives to check against their sources
+        Map<String, Long> expectedSizes = new HashMap<String, Long>();
+        Map<String, File> archives = new HashMap<String, File>();
+        Map<String, String> fileLinks = new LinkedHashMap<String, String>();
+        Path contentDir = null;
+        if (archiveFormat != null) {
+            contentDir = Files.createDirectory(workDir.resolve("content"));
+            server.setContentFolder(contentDir.toFile());
+        }
+
+        BufferedWriter bw = Files.newBufferedWriter(links, java.nio.charset.StandardCharsets.UTF_8);
+        try {
+            for (int i = 0; i < count; i++) {
+                String size = sizeList[i % sizeList.length].trim();
+                if (archiveFormat == null) {
+                    String fileName = "file" + i + ".bin";
+                    fileLinks.put(fileName, server.urlOf(fileName + "?size=" + size));
+                    bw.write(fileLinks.get(fileName) + " " + fileName);
+                    expectedSizes.put(fileName, Behaviour.parseSize(size));
+                } else {
+                    String fileName = "file" + i + "." + archiveFormat;
+                    File source = contentDir.resolve(fileName).toFile();
+                    long entrySize = Behaviour.parseSize(size) / ARCHIVE_ENTRIES_COUNT;
+                    writeArchive(source, archiveFormat, entrySize);
+                    bw.write(server.urlOf(fileName) + " " + fileName + " " + DownloadTask.EXTRACT_TOKEN);
+                    archives.put(fileName, source);
+                    for (int j = 0; j < ARCHIVE_ENTRIES_COUNT; j++) {
+                        expectedSizes.put("file" + i + "/entry" + j + ".bin", entrySize);
+                    }
+                }
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        Set<String> downloadedNames = archives.isEmpty() ? expectedSizes.keySet() : archives.keySet();
+
+        if (compareDurabilities) {
+            int failed = compareDurabilities(threadsCount, speedLimit, workDir, links, downloadOrder, expectedSizes);
+            reportRequests(server);
+            server.shutdown();
+            cleanUp(cmd.hasOption(keep), workDir, workDir);
+            System.exit(failed == 0 ? 0 : 1);
+        }
+
+        if (workersCount > 1) {
+            Path sharedDir = Files.createDirectory(workDir.resolve("shared"));
+            long start = System.currentTimeMillis();
+            runWorkers(workersCount, cmd, links, outDir, sharedDir);
+            long wallTime = Math.max(System.currentTimeMillis() - start, 1);
+
+            int failed = verifyAll(outDir, expectedSizes) + verifyArchives(outDir, archives);
+            LOGGER.info("==================");
+            LOGGER.info("Files: {} ({} broken or missing), worker processes: {}", new Object[] {count, failed, workersCount});
+            reportRequests(server);
+            LOGGER.info("Wall time: {} ms, throughput: {} bytes/sec", wallTime, totalSize(outDir, downloadedNames)
+                    * MILLISECONDS_IN_SECOND / wallTime);
+
+            server.shutdown();
+            cleanUp(cmd.hasOption(keep), workDir, outDir);
+            System.exit(failed == 0 ? 0 : 1);
+        }
+
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        DownloadManagerImpl dm = cmd.hasOption(stream) ? new DownloadManagerImpl(threadsCount, speedLimit)
+                : new DownloadManagerImpl(threadsCount, speedLimit, outDir.toString(), links.toString(), downloadOrder);
+        dm.setDurability(durability);
+        if (cmd.hasOption(adaptive)) {
+            dm.setConnectionController(new AimdConnectionController(threadsCount, cmd.getOptionValue(adaptive)));
+        }
+        dm.addProgressListener(new ProgressListener() {
+            public void progress(DownloadTask task) {
+                LOGGER.debug("{}: {} of {} bytes", new Object[] {task.getAddress(), task.getBytesDownloaded(),
+                        task.getContentSize()});
+            }
+
+            public void finished(DownloadTask task) {
+                if (!task.getFuture().isCompletedExceptionally()) {
+                    latencies.add(System.currentTimeMillis() - task.getStartTime());
+                }
+            }
+        });
+
+        resetPeakUsage();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long cpuBefore = processCpuTime();
+        long serverCpuBefore = server.getCpuTime();
+        long start = System.currentTimeMillis();
+
+        Map<String, VerifyingChannel> sinks = new HashMap<String, VerifyingChannel>();
+        if (cmd.hasOption(stream)) {
+            writeToChannels(dm, fileLinks, sinks);
+        } else {
+            dm.startDownload();
+        }
+        dm.shutdown();
+
+        long wallTime = Math.max(System.currentTimeMillis() - start, 1);
+        long cpuTime = processCpuTime() - cpuBefore;
+        long serverCpuTime = server.getCpuTime() - serverCpuBefore;
+
+        long bytes;
+        int failed;
+        if (cmd.hasOption(stream)) {
+            bytes = 0;
+            failed = 0;
+            for (Map.Entry<String, VerifyingChannel> entry : sinks.entrySet()) {
+                bytes += entry.getValue().getBytesWritten();
+                if (!entry.getValue().isComplete(expectedSizes.get(entry.getKey()))) {
+                    LOGGER.error("Stream {} is broken: {} bytes of {}", new Object[] {entry.getKey(),
+                            entry.getValue().getBytesWritten(), expectedSizes.get(entry.getKey())});
+                    failed++;
+                }
+            }
+        } else {
+            bytes = totalSize(outDir, downloadedNames);
+            failed = verifyAll(outDir, expectedSizes) + verifyArchives(outDir, archives);
+        }
+
+        Collections.sort(latencies);
+        LOGGER.info("==================");
+        LOGGER.info("Files: {} ({} broken, {} failed)", new Object[] {expectedSizes.size() + archives.size(), failed,
+                count - latencies.size()});
+        reportRequests(server);
+        LOGGER.info("Wall time: {} ms, throughput: {} bytes/sec", wallTime, bytes * MILLISECONDS_IN_SECOND / wallTime);
+        LOGGER.info("File latency ms: p50={} p95={} p99={} max={}", new Object[] {
+                percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99), percentile(latencies, 100)});
+        LOGGER.info("CPU time ms: downloader={} server={}",
+                (cpuTime - serverCpuTime) / NANOSECONDS_IN_MILLISECOND, serverCpuTime / NANOSECONDS_IN_MILLISECOND);
+        LOGGER.info("Peak heap: {} bytes, GC: {} collections, {} ms",
+                new Object[] {peakHeapUsage(), gcCount() - gcCountBefore, gcTime() - gcTimeBefore});
+
+        server.shutdown();
+        cleanUp(cmd.hasOption(keep), workDir, outDir);
+
+        System.exit(failed == 0 && latencies.size() == count ? 0 : 1);
+    }
+
+    /**
+     * Downloads the same links with every durability in turn, COMPARE_ROUNDS times, and reports
+     * the best wall time of each. Many small files show what flushing costs: SYNC flushes folder
+     * after every file, BATCH flushes files in parallel and folder once per group.
+     *
+     * @return number of broken or missing files in all runs.
+     */
+    private static int compareDurabilities(int threadsCount, long speedLimit, Path workDir, Path links,
+                                           DownloadOrder downloadOrder, Map<String, Long> expectedSizes)
+            throws IOException {
+        Durability[] durabilities = {Durability.NONE, Durability.SYNC, Durability.BATCH};
+        long[] bestTimes = new long[durabilities.length];
+        Arrays.fill(bestTimes, Long.MAX_VALUE);
+        int failed = 0;
+
+        for (int round = 0; round < COMPARE_ROUNDS; round++) {
+            for (int i = 0; i < durabilities.length; i++) {
+                Path outDir = Files.createDirectory(workDir.resolve("out-" + durabilities[i] + "-" + round));
+                DownloadManagerImpl dm = new DownloadManagerImpl(threadsCount, speedLimit, outDir.toString(),
+                        links.toString(), downloadOrder);
+                dm.setDurability(durabilities[i]);
+
+                long start = System.currentTimeMillis();
+                dm.startDownload();
+                dm.shutdown();
+                long wallTime = Math.max(System.currentTimeMillis() - start, 1);
+
+                bestTimes[i] = Math.min(bestTimes[i], wallTime);
+                failed += verifyAll(outDir, expectedSizes);
+                LOGGER.debug("Round {}, durability {}: {} ms", new Object[] {round, durabilities[i], wallTime});
+            }
+        }
+
+        LOGGER.info("==================");
+        LOGGER.info("Files: {} ({} broken or missing in {} rounds)", new Object[] {expectedSizes.size(), failed,
+                COMPARE_ROUNDS});
+        for (int i = 0; i < durabilities.length; i++) {
+            LOGGER.info("Durability {}: best wall time {} ms", durabilities[i], bestTimes[i]);
+        }
+        long syncCost = bestTimes[1] - bestTimes[0];
+        long batchCost = bestTimes[2] - bestTimes[0];
+        LOGGER.info("Flushing cost over NONE: SYNC {} ms, BATCH {} ms", syncCost, batchCost);
+        return failed;
+    }
+
+    /**
+     * Runs Main in several processes with the same links and waits for all of them.
+     */
+    private static void runWorkers(int workersCount, CommandLine cmd, Path links, Path outDir, Path sharedDir)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dconsoledownloader.lease.timeout=" + WORKER_LEASE_TIMEOUT);
+        command.add("com.mika.task.consoledownloader.Main");
+        command.add("-o");
+        command.add(outDir.toString());
+        command.add("-f");
+        command.add(links.toString());
+        command.add("-w");
+        command.add(sharedDir.toString());
+        for (String name : new String[] {"n", "l", "s", "a"}) {
+            if (cmd.hasOption(name)) {
+                command.add("-" + name);
+                command.add(cmd.getOptionValue(name));
+            }
+        }
+        if (cmd.hasOption("u")) {
+            command.add("-c");
+            command.add(cmd.getOptionValue("u"));
+        }
+
+        List<Process> workers = new ArrayList<Process>();
+        for (int i = 0; i < workersCount; i++) {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(sharedDir.resolveSibling("worker" + i + ".log").toFile());
+            workers.add(pb.start());
+        }
+
+        if (cmd.hasOption("x")) {
+            Thread.sleep(Long.parseLong(cmd.getOptionValue("x")));
+            LOGGER.info("Killing worker 0");
+            workers.get(0).destroyForcibly();
+        }
+
+        for (int i = 0; i < workersCount; i++) {
+            int exitCode = workers.get(i).waitFor();
+            LOGGER.info("Worker {} exited with code {}, log: {}",
+                    new Object[] {i, exitCode, sharedDir.resolveSibling("worker" + i + ".log")});
+        }
+    }
+
+    private static void reportRequests(StandInServer server) {
+        LOGGER.info("Server requests: {}, connection resets: {}", server.getRequestsCount(), server.getResetsCount());
+        if (server.getResetsCount() > 0) {
+            // such run checks that failures are reported and partial files removed, not that downloads recover
+            LOGGER.warn("Blocks are not retried, so files hit by connection resets fail: failures are expected in this run");
+        }
+    }
+
+    /**
+     * Submits every link with its own verifying channel and waits for all of them.
+     */
+    private static void writeToChannels(DownloadManagerImpl dm, Map<String, String> fileLinks,
+                                        Map<String, VerifyingChannel> sinks) throws InterruptedException {
+        List<CompletableFuture<DownloadResult>> futures = new ArrayList<CompletableFuture<DownloadResult>>();
+        for (Map.Entry<String, String> entry : fileLinks.entrySet()) {
+            VerifyingChannel sink = new VerifyingChannel();
+            sinks.put(entry.getKey(), sink);
+            futures.add(dm.submit(entry.getValue(), sink, Priority.NORMAL));
+        }
+        for (CompletableFuture<DownloadResult> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                LOGGER.error("Download failed: {}", e.getCause().toString());
+            }
+        }
+    }
+
+    private static int verifyAll(Path outDir, Map<String, Long> expectedSizes) throws IOException {
+        int failed = 0;
+        for (Map.Entry<String, Long> entry : expectedSizes.entrySet()) {
+            File f = outDir.resolve(entry.getKey()).toFile();
+            if (!verify(f, entry.getValue())) {
+                LOGGER.error("File {} is broken: {} bytes of {}", new Object[] {f.getName(), f.length(), entry.getValue()});
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private static int verifyArchives(Path outDir, Map<String, File> archives) throws IOException {
+        int failed = 0;
+        for (Map.Entry<String, File> entry : archives.entrySet()) {
+            Path downloaded = outDir.resolve(entry.getKey());
+            if (!Files.exists(downloaded) || !Arrays.equals(Files.readAllBytes(downloaded),
+                    Files.readAllBytes(entry.getValue().toPath()))) {
+                LOGGER.error("Archive {} is broken or missing", entry.getKey());
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private static long totalSize(Path outDir, Set<String> fileNames) {
+        long bytes = 0;
+        for (String fileName : fileNames) {
+            bytes += outDir.resolve(fileName).toFile().length();
+        }
+        return bytes;
+    }
+
+    private static void cleanUp(boolean keep, Path workDir, Path outDir) throws IOException {
+        if (keep) {
+            LOGGER.info("Files are kept in {}", outDir);
+            return;
+        }
+        deleteTree(workDir);
+    }
+
+    /**
+     * Writes archive of ARCHIVE_ENTRIES_COUNT entries, byte at offset i of every
+     * entry is equal to StandInServer.contentByte(i).
+     */
+    private static void writeArchive(File file, String format, long entrySize) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            if ("zip".equals(format)) {
+                ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+                for (int j = 0; j < ARCHIVE_ENTRIES_COUNT; j++) {
+                    zip.putArchiveEntry(new ZipArchiveEntry("entry" + j + ".bin"));
+                    writeEntry(zip, entrySize);
+                    zip.closeArchiveEntry();
+                }
+                zip.finish();
+                out = zip;
+                return;
+            }
+
+            if ("tar.gz".equals(format)) {
+                out = new GzipCompressorOutputStream(out);
+            } else if ("tar.bz2".equals(format)) {
+                out = new BZip2CompressorOutputStream(out);
+            } else if ("tar.zst".equals(format)) {
+                out = new ZstdCompressorOutputStream(out);
+            }
+            TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+            for (int j = 0; j < ARCHIVE_ENTRIES_COUNT; j++) {
+                TarArchiveEntry entry = new TarArchiveEntry("entry" + j + ".bin");
+                entry.setSize(entrySize);
+                tar.putArchiveEntry(entry);
+                writeEntry(tar, entrySize);
+                tar.closeArchiveEntry();
+            }
+            tar.finish();
+            out = tar;
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeEntry(OutputStream out, long size) throws IOException {
+        byte[] buf = new byte[WRITE_BUFFER_SIZE];
+        for (long pos = 0; pos < size; pos += buf.length) {
+            int n = (int) Math.min(buf.length, size - pos);
+            for (int i = 0; i < n; i++) {
+                buf[i] = StandInServer.contentByte(pos + i);
+            }
+            out.write(buf, 0, n);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        File[] children = dir.toFile().listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    deleteTree(child.toPath());
+                } else {
+                    Files.delete(child.toPath());
+                }
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static boolean verify(File f, long expectedSize) throws IOException {
+        if (f.length() != expectedSize) {
+            return false;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            long offset = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                if ((byte) b != StandInServer.contentByte(offset)) {
+                    return false;
+                }
+                offset++;
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private static long percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int k = (int) Math.ceil(sorted.size() * p / 100.0) - 1;
+        return sorted.get(Math.max(k, 0));
+    }
+
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static void resetPeakUsage() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionCount(), 0);
+        }
+        return total;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+}
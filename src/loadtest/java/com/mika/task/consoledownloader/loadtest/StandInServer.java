@@ -0,0 +1,486 @@
+package com.mika.task.consoledownloader.loadtest;
+
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server that serves synthetic content for load tests.
+ * Every path is a resource, its behaviour is set by query string (see Behaviour).
+ * Byte at offset i of every resource is equal to contentByte(i), so downloaded
+ * files can be verified without keeping the original content. Paths that exist
+ * in content folder, if it is set, are served from there instead.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class StandInServer implements Runnable {
+    /**
+     * Socket to accept connections on.
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Default behaviour of resources.
+     */
+    private final String defaultBehaviour;
+
+    /**
+     * Executor service for connections.
+     */
+    private final ExecutorService executorService;
+
+    /**
+     * Flag that helps to stop this thread safely.
+     */
+    private volatile boolean keepAlive;
+
+    /**
+     * CPU time spent by connection threads, in nanoseconds.
+     */
+    private final AtomicLong cpuTime;
+
+    /**
+     * Requests served.
+     */
+    private final AtomicLong requestsCount;
+
+    /**
+     * Connections reset on purpose.
+     */
+    private final AtomicLong resetsCount;
+
+    /**
+     * Folder with real files to serve, null to serve synthetic content only.
+     */
+    private volatile File contentFolder;
+
+    /**
+     * Responses being sent at the moment.
+     */
+    private final AtomicInteger activeResponses;
+
+    /**
+     * Time when server is free to send the next bytes under total rate limit, in nanoseconds.
+     */
+    private long nextSendTime;
+
+    /**
+     * Size of buffer to write body with.
+     */
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private static final int MILLISECONDS_IN_SECOND = 1000;
+
+    private static final long NANOSECONDS_IN_SECOND = 1000000000L;
+
+    private static final int NANOSECONDS_IN_MILLISECOND = 1000000;
+
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Logger to log messages.
+     */
+    private static final ch.qos.logback.classic.Logger LOGGER =
+            (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(StandInServer.class);
+
+    /**
+     * Constructor. Server listens on loopback interface only.
+     *
+     * @param port Port to listen on, 0 to choose any free port.
+     * @param behaviour Default behaviour of resources in query string format.
+     * @throws IOException if socket can not be opened.
+     */
+    public StandInServer(int port, String behaviour) throws IOException {
+        Assert.isTrue(port >= 0, "Port must be not negative");
+
+        // check defaults right away instead of failing on every request
+        Behaviour.parse(behaviour, null);
+
+        serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        defaultBehaviour = behaviour;
+        // idle keep-alive connections must not keep JVM alive
+        executorService = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stand-in-connection");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        keepAlive = true;
+        cpuTime = new AtomicLong();
+        requestsCount = new AtomicLong();
+        resetsCount = new AtomicLong();
+        activeResponses = new AtomicInteger();
+    }
+
+    /**
+     * @return port server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param path Path of resource, may include query string.
+     * @return URL of resource on this server.
+     */
+    public String urlOf(String path) {
+        return "http://127.0.0.1:" + getPort() + "/" + path;
+    }
+
+    /**
+     * @return CPU time spent by connection threads, in nanoseconds.
+     */
+    public long getCpuTime() {
+        return cpuTime.get();
+    }
+
+    public long getRequestsCount() {
+        return requestsCount.get();
+    }
+
+    public long getResetsCount() {
+        return resetsCount.get();
+    }
+
+    /**
+     * @param folder Folder with real files to serve, null to serve synthetic content only.
+     */
+    public void setContentFolder(File folder) {
+        contentFolder = folder;
+    }
+
+    /**
+     * Value of byte at specified offset of every resource.
+     *
+     * @param offset offset in resource.
+     * @return byte value.
+     */
+    public static byte contentByte(long offset) {
+        return (byte) (offset % 251);
+    }
+
+    /**
+     * Stops this threads` work.
+     */
+    public void shutdown() {
+        keepAlive = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        executorService.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        while (keepAlive) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executorService.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (keepAlive) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long cpuStart = threadBean.getCurrentThreadCpuTime();
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+
+            boolean keepConnection = true;
+            while (keepConnection) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int k = line.indexOf(':');
+                    if (k > 0) {
+                        headers.put(line.substring(0, k).trim().toLowerCase(), line.substring(k + 1).trim());
+                    }
+                }
+                requestsCount.incrementAndGet();
+                keepConnection = respond(socket, out, requestLine, headers)
+                        && !"close".equalsIgnoreCase(headers.get("connection"));
+
+                // idle keep-alive connections are not closed till the end of test, so count CPU time per request
+                long cpuNow = threadBean.getCurrentThreadCpuTime();
+                cpuTime.addAndGet(cpuNow - cpuStart);
+                cpuStart = cpuNow;
+            }
+        } catch (SocketException e) {
+            LOGGER.debug("Connection closed by client: {}", e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            cpuTime.addAndGet(threadBean.getCurrentThreadCpuTime() - cpuStart);
+        }
+    }
+
+    /**
+     * Writes response to request.
+     *
+     * @return true if connection can be used for the next request.
+     */
+    private boolean respond(Socket socket, OutputStream out, String requestLine, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 3 || parts[1].length() < 2) {
+            writeHead(out, "400 Bad Request", "Content-Length: 0");
+            return false;
+        }
+        boolean head = "HEAD".equals(parts[0]);
+        int q = parts[1].indexOf('?');
+        String query = (q >= 0) ? parts[1].substring(q + 1) : null;
+
+        Behaviour b;
+        try {
+            b = Behaviour.parse(defaultBehaviour, query);
+        } catch (IllegalArgumentException e) {
+            writeHead(out, "400 Bad Request", "Content-Length: 0");
+            return false;
+        }
+
+        if (b.latency > 0) {
+            Thread.sleep(b.latency);
+        }
+
+        if (!head && b.busy > 0 && activeResponses.get() >= b.busy) {
+            writeHead(out, "503 Service Unavailable", "Content-Length: 0");
+            return true;
+        }
+
+        String name = (q >= 0) ? parts[1].substring(1, q) : parts[1].substring(1);
+        File folder = contentFolder;
+        File file = (folder != null) ? new File(folder, name) : null;
+        RandomAccessFile source = (file != null && file.isFile()) ? new RandomAccessFile(file, "r") : null;
+        try {
+            return respond(socket, out, head, b, headers, source);
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+
+    private boolean respond(Socket socket, OutputStream out, boolean head, Behaviour b, Map<String, String> headers,
+                            RandomAccessFile source) throws IOException, InterruptedException {
+        long size = (source != null) ? source.length() : b.size;
+        long start = 0;
+        long end = size - 1;
+        String status = "200 OK";
+        StringBuilder sb = new StringBuilder();
+        String rangeHeader = headers.get("range");
+        if (b.range) {
+            sb.append("Accept-Ranges: bytes").append(CRLF);
+            long[] range = parseRange(rangeHeader, size);
+            if (range != null) {
+                start = range[0];
+                end = range[1];
+                status = "206 Partial Content";
+                sb.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(size).append(CRLF);
+            }
+        }
+        long bodyLength = end - start + 1;
+
+        boolean closeDelimited = false;
+        if (b.chunked) {
+            sb.append("Transfer-Encoding: chunked").append(CRLF);
+        } else if (b.length) {
+            sb.append("Content-Length: ").append(bodyLength).append(CRLF);
+        } else {
+            sb.append("Connection: close").append(CRLF);
+            closeDelimited = true;
+        }
+        sb.append("Content-Type: application/octet-stream");
+        writeHead(out, status, sb.toString());
+
+        if (head) {
+            return !closeDelimited;
+        }
+
+        activeResponses.incrementAndGet();
+        try {
+            return writeBody(socket, out, b, source, start, end, closeDelimited);
+        } finally {
+            activeResponses.decrementAndGet();
+        }
+    }
+
+    private boolean writeBody(Socket socket, OutputStream out, Behaviour b, RandomAccessFile source, long start, long end,
+                              boolean closeDelimited) throws IOException, InterruptedException {
+        long bodyLength = end - start + 1;
+        long resetAt = Long.MAX_VALUE;
+        if (b.reset > 0 && new Random().nextDouble() < b.reset) {
+            resetAt = start + bodyLength / 2;
+        }
+
+        byte[] buf = new byte[WRITE_BUFFER_SIZE];
+        long pos = start;
+        long begin = System.currentTimeMillis();
+        while (pos <= end) {
+            int n = (int) Math.min(buf.length, end - pos + 1);
+            if (pos + n > resetAt) {
+                resetsCount.incrementAndGet();
+                out.flush();
+                socket.setSoLinger(true, 0);
+                socket.close();
+                return false;
+            }
+
+            if (source != null) {
+                source.seek(pos);
+                source.readFully(buf, 0, n);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    buf[i] = contentByte(pos + i);
+                }
+            }
+            if (b.chunked) {
+                out.write((Integer.toHexString(n) + CRLF).getBytes(StandardCharsets.US_ASCII));
+                out.write(buf, 0, n);
+                out.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+            } else {
+                out.write(buf, 0, n);
+            }
+            pos += n;
+
+            if (b.total > 0) {
+                out.flush();
+                paceTotal(n, b.total);
+            }
+            if (b.rate > 0) {
+                out.flush();
+                long expected = (pos - start) * MILLISECONDS_IN_SECOND / b.rate;
+                long elapsed = System.currentTimeMillis() - begin;
+                if (expected > elapsed) {
+                    Thread.sleep(expected - elapsed);
+                }
+            }
+        }
+        if (b.chunked) {
+            out.write(("0" + CRLF + CRLF).getBytes(StandardCharsets.US_ASCII));
+        }
+        out.flush();
+
+        return !closeDelimited;
+    }
+
+    /**
+     * Waits till n bytes can be sent under throughput limit of the whole server.
+     */
+    private void paceTotal(int n, long total) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long sendAt = Math.max(nextSendTime, now);
+            nextSendTime = sendAt + n * NANOSECONDS_IN_SECOND / total;
+            wait = sendAt - now;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / NANOSECONDS_IN_MILLISECOND, (int) (wait % NANOSECONDS_IN_MILLISECOND));
+        }
+    }
+
+    private static void writeHead(OutputStream out, String status, String headers) throws IOException {
+        String head = "HTTP/1.1 " + status + CRLF + headers + CRLF + CRLF;
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Parses single range "bytes=a-b" or "bytes=a-".
+     *
+     * @return first and last byte positions or null if range is absent or not satisfiable.
+     */
+    private static long[] parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length());
+        int k = spec.indexOf('-');
+        if (k <= 0) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(spec.substring(0, k));
+            long last = (k == spec.length() - 1) ? size - 1 : Math.min(Long.parseLong(spec.substring(k + 1)), size - 1);
+            if (first > last) {
+                return null;
+            }
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
+    /**
+     * Runs server until the process is killed.
+     *
+     * @param args port and optional default behaviour.
+     * @throws IOException if socket can not be opened.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 0;
+        String behaviour = (args.length > 1) ? args[1] : null;
+
+        StandInServer server = new StandInServer(port, behaviour);
+        LOGGER.info("Stand-in server is listening on {}", server.urlOf(""));
+        server.run();
+    }
+}
@@ -0,0 +1,65 @@
+package com.mika.task.consoledownloader.loadtest;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel that checks every written byte against StandInServer.contentByte,
+ * so that resources written in order can be verified without keeping them.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class VerifyingChannel implements WritableByteChannel {
+    /**
+     * Offset of the next byte.
+     */
+    private long offset;
+
+    /**
+     * Offset of the first wrong byte, -1 if all bytes are right.
+     */
+    private long firstWrongByte = -1;
+
+    /**
+     * Whether channel is open.
+     */
+    private boolean open = true;
+
+    @Override
+    public synchronized int write(ByteBuffer src) {
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            if (src.get() != StandInServer.contentByte(offset) && firstWrongByte < 0) {
+                firstWrongByte = offset;
+            }
+            offset++;
+        }
+        return n;
+    }
+
+    /**
+     * @return bytes written so far.
+     */
+    synchronized long getBytesWritten() {
+        return offset;
+    }
+
+    /**
+     * @param expectedSize Size of resource.
+     * @return whether the whole resource is written and every byte is right.
+     */
+    synchronized boolean isComplete(long expectedSize) {
+        return offset == expectedSize && firstWrongByte < 0;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+}
@@ -1,6 +1,6 @@
 package com.mika.task.consoledownloader;
 
-import java.nio.channels.FileChannel;
+import java.io.IOException;
 
 /**
  * Callback to execute after downloading thread is finished.
@@ -13,8 +13,9 @@ public interface ActionCallback {
      * This method is called by downloader thread after it has
      * finished download task.
      *
-     * @param out file channel that downloader thread was writing to.
+     * @param out output that downloader thread was writing to.
      * @param bytesDownloaded bytes downloaded by downloader thread.
+     * @param error error that stopped downloader thread, null if block is downloaded.
      */
-    void perform(FileChannel out, long bytesDownloaded);
+    void perform(BlockWriter out, long bytesDownloaded, IOException error);
 }
@@ -0,0 +1,24 @@
+package com.mika.task.consoledownloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Output of resource that downloading threads write their blocks to.
+ * Every block is written at its own offset, blocks are written in parallel.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public interface BlockWriter extends Closeable {
+    /**
+     * Writes bytes of block. May wait till there is room for them.
+     *
+     * @param src Buffer to write bytes from.
+     * @param position Offset of the first byte in resource.
+     * @return number of bytes written.
+     * @throws IOException if bytes can not be written.
+     */
+    int write(ByteBuffer src, long position) throws IOException;
+}
@@ -0,0 +1,41 @@
+package com.mika.task.consoledownloader;
+
+import java.io.IOException;
+
+/**
+ * Decides how many connections may be open to a host at once, by all files of the host together.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public interface ConnectionController {
+    /**
+     * @param host host and port of link.
+     * @return number of connections that may be open to host at once.
+     */
+    int getConnections(String host);
+
+    /**
+     * Registers bytes downloaded from host during a short interval.
+     *
+     * @param host host and port of link.
+     * @param bytes bytes downloaded from host during interval.
+     * @param millis length of interval in milliseconds.
+     * @param connections number of connections open to host at the end of interval.
+     */
+    void transferred(String host, long bytes, long millis, int connections);
+
+    /**
+     * Registers that host refused a connection with 429 or 503 response or reset it.
+     *
+     * @param host host and port of link.
+     */
+    void congested(String host);
+
+    /**
+     * Saves what was learned about hosts.
+     *
+     * @throws IOException if state could not be saved.
+     */
+    void save() throws IOException;
+}
@@ -0,0 +1,485 @@
+package com.mika.task.consoledownloader;
+
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Resident download daemon. Keeps one DownloadManager with warm threads, connections
+ * and speed limit, and accepts jobs through loopback socket and spool folder.
+ *
+ * Socket protocol, one command per line, one response line per command:
+ *
+ *     SUBMIT <HTTP-link> <file name to save> [<priority>]   ->  OK <job id>
+ *     STATUS <job id>                                        ->  <job status>
+ *     WAIT <job id>                                          ->  <job status> when job is finished
+ *     CANCEL <job id>                                        ->  OK
+ *     LIST                                                   ->  <job status> lines, then END
+ *     SHUTDOWN                                               ->  OK, daemon stops after all jobs are finished
+ *
+ * Job status is "<job id> <state> <bytes downloaded> <content size> [<error>]", where state is
+ * one of QUEUED, RUNNING, DONE, FAILED, CANCELLED. Errors are reported as "ERROR <message>".
+ *
+ * Spool folder: every file "*.txt" in format of file with links is renamed to "*.txt.accepted"
+ * and its links are submitted. When all of them are finished, job statuses are written
+ * to "*.txt.report" and "*.txt.accepted" is removed. File that can not be read gets a report
+ * with "ERROR <message>" right away. File is accepted as it is at the moment daemon sees it,
+ * so writers must create "*.txt" atomically: write it under another name and rename it.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class DownloadDaemon {
+    /**
+     * Download manager shared by all jobs.
+     */
+    private final DownloadManager downloadManager;
+
+    /**
+     * Folder to download files to.
+     */
+    private final Path outputFolder;
+
+    /**
+     * Port to listen on, loopback interface only.
+     */
+    private final int port;
+
+    /**
+     * Spool folder to take files with links from, may be null.
+     */
+    private final Path spoolFolder;
+
+    /**
+     * Jobs by id. Finished jobs are kept for JOB_RETENTION milliseconds.
+     */
+    private final Map<Long, DownloadTask> jobs;
+
+    /**
+     * Time when job was finished, by job id.
+     */
+    private final Map<Long, Long> finishTimes;
+
+    /**
+     * Job id counter. Job id is also the submission number of its task, so that jobs of
+     * the same priority from clients and spool files start in order of submission.
+     */
+    private final AtomicLong jobCounter;
+
+    /**
+     * Executor service for client connections.
+     */
+    private final ExecutorService clientService;
+
+    /**
+     * Executor service to poll spool folder.
+     */
+    private final ScheduledExecutorService spoolService;
+
+    /**
+     * Socket to accept clients on.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Flag that helps to stop daemon safely.
+     */
+    private volatile boolean keepAlive;
+
+    /**
+     * How long finished jobs are kept for STATUS requests, in milliseconds.
+     */
+    private static final long JOB_RETENTION = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Interval between checks of spool folder, in milliseconds.
+     */
+    private static final int SPOOL_INTERVAL = 1000;
+
+    private static final String SPOOL_SUFFIX = ".txt";
+    private static final String ACCEPTED_SUFFIX = ".accepted";
+    private static final String REPORT_SUFFIX = ".report";
+
+    /**
+     * Logger to log messages.
+     */
+    private static final ch.qos.logback.classic.Logger LOGGER =
+            (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(DownloadDaemon.class);
+
+    /**
+     * Constructor.
+     *
+     * @param dm Download manager shared by all jobs.
+     * @param outFolder Folder to download files to.
+     * @param listenPort Port to listen on, loopback interface only.
+     * @param spool Spool folder to take files with links from, may be null.
+     */
+    public DownloadDaemon(DownloadManager dm, String outFolder, int listenPort, String spool) {
+        Assert.notNull(dm, "Download manager must be not null");
+        Assert.notNull(outFolder, "Output folder must be not null");
+        Assert.isTrue(listenPort >= 0, "Port must be not negative");
+
+        downloadManager = dm;
+        outputFolder = FileSystems.getDefault().getPath(outFolder).toAbsolutePath().normalize();
+        port = listenPort;
+        spoolFolder = (spool != null) ? FileSystems.getDefault().getPath(spool) : null;
+
+        jobs = new ConcurrentHashMap<Long, DownloadTask>();
+        finishTimes = new ConcurrentHashMap<Long, Long>();
+        jobCounter = new AtomicLong();
+
+        clientService = Executors.newCachedThreadPool(daemonThreads("daemon-client"));
+        spoolService = Executors.newSingleThreadScheduledExecutor(daemonThreads("daemon-spool"));
+    }
+
+    /**
+     * @param name Name of threads.
+     * @return factory of daemon threads with specified name.
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Accepts jobs until SHUTDOWN command is received, then waits for all jobs to finish.
+     *
+     * @throws IOException if socket can not be opened.
+     */
+    public void run() throws IOException {
+        serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        keepAlive = true;
+        LOGGER.info("Download daemon is listening on {}:{}", serverSocket.getInetAddress().getHostAddress(),
+                serverSocket.getLocalPort());
+
+        if (spoolFolder != null) {
+            LOGGER.info("Spool folder: {}", spoolFolder);
+            spoolService.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    // exception would cancel all the following polls
+                    try {
+                        pollSpoolFolder();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Poll of spool folder failed: {}", e.toString());
+                    }
+                }
+            }, 0, SPOOL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        while (keepAlive) {
+            try {
+                final Socket socket = serverSocket.accept();
+                clientService.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (keepAlive) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        spoolService.shutdown();
+        LOGGER.info("Download daemon is stopping, waiting for jobs to finish...");
+        downloadManager.shutdown();
+        clientService.shutdownNow();
+        LOGGER.info("Download daemon is stopped");
+    }
+
+    /**
+     * @return port daemon listens on, useful if it was started on port 0.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting jobs.
+     */
+    public void shutdown() {
+        keepAlive = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (!execute(line, out)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Client connection failed: {}", e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Executes command of client.
+     *
+     * @return false if connection should be closed.
+     */
+    private boolean execute(String line, PrintWriter out) {
+        int k = line.indexOf(' ');
+        String command = (k < 0 ? line : line.substring(0, k)).toUpperCase();
+        String args = (k < 0) ? "" : line.substring(k + 1).trim();
+
+        try {
+            if ("SUBMIT".equals(command)) {
+                out.println("OK " + submit(args));
+            } else if ("STATUS".equals(command)) {
+                out.println(status(parseJobId(args)));
+            } else if ("WAIT".equals(command)) {
+                long id = parseJobId(args);
+                try {
+                    getJob(id).getFuture().get();
+                } catch (ExecutionException e) {
+                    // reported by status
+                } catch (CancellationException e) {
+                    // reported by status
+                }
+                out.println(status(id));
+            } else if ("CANCEL".equals(command)) {
+                getJob(parseJobId(args)).getFuture().cancel(true);
+                out.println("OK");
+            } else if ("LIST".equals(command)) {
+                evictFinishedJobs();
+                for (Long id : new ArrayList<Long>(jobs.keySet())) {
+                    out.println(status(id));
+                }
+                out.println("END");
+            } else if ("SHUTDOWN".equals(command)) {
+                out.println("OK");
+                shutdown();
+                return false;
+            } else {
+                out.println("ERROR Unknown command: " + command);
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR " + e.getMessage());
+        } catch (IllegalStateException e) {
+            out.println("ERROR " + e.getMessage());
+        } catch (InterruptedException e) {
+            out.println("ERROR Interrupted");
+            return false;
+        }
+        return true;
+    }
+
+    private long parseJobId(String arg) {
+        try {
+            long id = Long.parseLong(arg);
+            if (jobs.containsKey(id)) {
+                return id;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Unknown job: " + arg);
+    }
+
+    /**
+     * @param id Job id returned by parseJobId().
+     * @return task of job.
+     * @throws IllegalArgumentException if job is evicted in the meantime.
+     */
+    private DownloadTask getJob(long id) {
+        DownloadTask task = jobs.get(id);
+        if (task == null) {
+            throw new IllegalArgumentException("Unknown job: " + id);
+        }
+        return task;
+    }
+
+    /**
+     * Submits job to download manager.
+     *
+     * @param line Line in format of file with links.
+     * @return job id.
+     * @throws IllegalArgumentException if line is malformed or file is outside of output folder.
+     */
+    private long submit(String line) {
+        final long id = jobCounter.incrementAndGet();
+        DownloadTask task = DownloadTask.fromLine(line, outputFolder.toString(), id);
+
+        // do not let clients write outside of output folder
+        if (!task.getTarget().toAbsolutePath().normalize().startsWith(outputFolder)) {
+            throw new IllegalArgumentException("File must be inside output folder: " + task.getTarget());
+        }
+
+        evictFinishedJobs();
+
+        // manager that is shut down rejects task, job is not kept then
+        CompletableFuture<DownloadResult> future = downloadManager.submit(task);
+        jobs.put(id, task);
+        future.whenComplete(new BiConsumer<DownloadResult, Throwable>() {
+            public void accept(DownloadResult result, Throwable error) {
+                finishTimes.put(id, System.currentTimeMillis());
+            }
+        });
+        LOGGER.debug("Job {} submitted: {}", id, task.getAddress());
+        return id;
+    }
+
+    private String status(long id) {
+        DownloadTask task = jobs.get(id);
+        if (task == null) {
+            return "ERROR Unknown job: " + id;
+        }
+
+        CompletableFuture<DownloadResult> future = task.getFuture();
+        String state;
+        String error = "";
+        if (future.isCancelled()) {
+            state = "CANCELLED";
+        } else if (future.isCompletedExceptionally()) {
+            state = "FAILED";
+            error = " " + task.getError();
+        } else if (future.isDone()) {
+            state = "DONE";
+        } else if (task.getStartTime() > 0) {
+            state = "RUNNING";
+        } else {
+            state = "QUEUED";
+        }
+        return id + " " + state + " " + task.getBytesDownloaded() + " " + task.getContentSize() + error;
+    }
+
+    private void evictFinishedJobs() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Long> entry : finishTimes.entrySet()) {
+            if (now - entry.getValue() > JOB_RETENTION) {
+                jobs.remove(entry.getKey());
+                finishTimes.remove(entry.getKey());
+            }
+        }
+    }
+
+    private void pollSpoolFolder() {
+        DirectoryStream<Path> stream = null;
+        try {
+            stream = Files.newDirectoryStream(spoolFolder, "*" + SPOOL_SUFFIX);
+            for (Path links : stream) {
+                // one bad file must not hold up the rest
+                try {
+                    acceptSpoolFile(links);
+                } catch (IOException e) {
+                    LOGGER.error("Spool file {} is not accepted: {}", links, e.toString());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void acceptSpoolFile(Path links) throws IOException {
+        // rename first, so that the file is never submitted twice
+        final Path accepted = links.resolveSibling(links.getFileName() + ACCEPTED_SUFFIX);
+        Files.move(links, accepted, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Spool file accepted: {}", links);
+
+        final Path report = links.resolveSibling(links.getFileName() + REPORT_SUFFIX);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(accepted, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // for example the file is not in UTF-8
+            LOGGER.error("Spool file {} can not be read: {}", accepted, e.toString());
+            writeReport(report, accepted, Collections.singletonList("ERROR Can not read " + links.getFileName()
+                    + ": " + e));
+            return;
+        }
+
+        final List<Long> ids = new ArrayList<Long>();
+        List<CompletableFuture<DownloadResult>> futures = new ArrayList<CompletableFuture<DownloadResult>>();
+        final List<String> errors = new ArrayList<String>();
+        for (String line : lines) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                long id = submit(line.trim());
+                ids.add(id);
+                futures.add(getJob(id).getFuture());
+            } catch (IllegalArgumentException e) {
+                errors.add("ERROR " + e.getMessage());
+            } catch (IllegalStateException e) {
+                // download manager is shut down
+                errors.add("ERROR " + e.getMessage());
+            }
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).whenComplete(
+                new BiConsumer<Void, Throwable>() {
+                    public void accept(Void v, Throwable error) {
+                        List<String> lines = new ArrayList<String>(errors);
+                        for (Long id : ids) {
+                            lines.add(status(id));
+                        }
+                        writeReport(report, accepted, lines);
+                    }
+                });
+    }
+
+    /**
+     * Writes report of spool file and removes accepted file.
+     *
+     * @param report Report file.
+     * @param accepted Accepted spool file.
+     * @param lines Lines of report.
+     */
+    private void writeReport(Path report, Path accepted, List<String> lines) {
+        try {
+            Files.write(report, lines, StandardCharsets.UTF_8);
+            Files.delete(accepted);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        LOGGER.info("Spool file finished: {}", report);
+    }
+}
@@ -1,15 +1,67 @@
 package com.mika.task.consoledownloader;
 
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Download manager that handles download process, creates download tasks and
  * delegates these tasks to downloading threads.
  *
+ * Download manager may live as long as the process does: downloading threads,
+ * connections and speed limit are shared by all submitted files.
+ *
  * @author Mikhail Gushinets
  * @since 01/09/2014
  */
 public interface DownloadManager {
     /**
-     * Starts download process.
+     * Downloads all links from file with links and waits for them to finish.
      */
     void startDownload();
+
+    /**
+     * Submits file for download. Method does not block.
+     *
+     * @param address Link to download.
+     * @param target File to save resource to.
+     * @param priority Priority class of the link.
+     * @return future that is completed when file is downloaded. Cancel it to stop download.
+     */
+    CompletableFuture<DownloadResult> submit(String address, Path target, Priority priority);
+
+    /**
+     * Submits resource for download to channel. Blocks are still downloaded in parallel,
+     * but bytes are written to channel strictly in order, so it may be standard output
+     * or a pipe. Method does not block, channel is not closed when download is finished.
+     *
+     * @param address Link to download.
+     * @param sink Channel to write resource to.
+     * @param priority Priority class of the link.
+     * @return future that is completed when resource is written. Cancel it to stop download.
+     */
+    CompletableFuture<DownloadResult> submit(String address, WritableByteChannel sink, Priority priority);
+
+    /**
+     * Submits prepared task for download. Method does not block.
+     *
+     * @param task Task to download.
+     * @return future of the task.
+     */
+    CompletableFuture<DownloadResult> submit(DownloadTask task);
+
+    /**
+     * @param listener Listener to notify about progress of all files.
+     */
+    void addProgressListener(ProgressListener listener);
+
+    /**
+     * @param listener Listener to remove.
+     */
+    void removeProgressListener(ProgressListener listener);
+
+    /**
+     * Waits for all submitted files and stops downloading threads.
+     */
+    void shutdown();
 }
@@ -0,0 +1,70 @@
+package com.mika.task.consoledownloader;
+
+import java.util.Comparator;
+
+/**
+ * Policies to order links of the same priority class.
+ * Any other Comparator of DownloadTask can be passed to
+ * download manager as well.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public enum DownloadOrder implements Comparator<DownloadTask> {
+    /**
+     * Links are downloaded in order of file with links.
+     */
+    MANIFEST {
+        @Override
+        public int compare(DownloadTask a, DownloadTask b) {
+            return 0;
+        }
+    },
+
+    /**
+     * Smaller files first, reduces mean time of file completion.
+     * Files of unknown size go last.
+     */
+    SHORTEST_FIRST {
+        @Override
+        public int compare(DownloadTask a, DownloadTask b) {
+            return compareSizes(sizeOrMax(a), sizeOrMax(b));
+        }
+    },
+
+    /**
+     * Larger files first, reduces total download time.
+     * Files of unknown size go last.
+     */
+    LARGEST_FIRST {
+        @Override
+        public int compare(DownloadTask a, DownloadTask b) {
+            return compareSizes(b.getContentSize(), a.getContentSize());
+        }
+    };
+
+    private static long sizeOrMax(DownloadTask task) {
+        return task.getContentSize() < 0 ? Long.MAX_VALUE : task.getContentSize();
+    }
+
+    private static int compareSizes(long x, long y) {
+        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+    }
+
+    /**
+     * Parses order name as specified in command line.
+     *
+     * @param name one of "manifest", "shortest", "largest".
+     * @return order or null if name is unknown.
+     */
+    public static DownloadOrder fromString(String name) {
+        if ("manifest".equalsIgnoreCase(name)) {
+            return MANIFEST;
+        } else if ("shortest".equalsIgnoreCase(name)) {
+            return SHORTEST_FIRST;
+        } else if ("largest".equalsIgnoreCase(name)) {
+            return LARGEST_FIRST;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,62 @@
+package com.mika.task.consoledownloader;
+
+import java.nio.file.Path;
+
+/**
+ * Result of successfully downloaded file.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class DownloadResult {
+    /**
+     * Downloaded link.
+     */
+    private final String address;
+
+    /**
+     * File resource was saved to, null if it was written to channel.
+     */
+    private final Path target;
+
+    /**
+     * Bytes downloaded.
+     */
+    private final long bytesDownloaded;
+
+    /**
+     * Download time in milliseconds.
+     */
+    private final long millis;
+
+    /**
+     * Constructor.
+     *
+     * @param link Downloaded link.
+     * @param file File resource was saved to, null if it was written to channel.
+     * @param bytes Bytes downloaded.
+     * @param time Download time in milliseconds.
+     */
+    public DownloadResult(String link, Path file, long bytes, long time) {
+        address = link;
+        target = file;
+        bytesDownloaded = bytes;
+        millis = time;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+}
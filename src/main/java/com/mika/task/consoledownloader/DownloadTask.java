@@ -0,0 +1,386 @@
+package com.mika.task.consoledownloader;
+
+import org.springframework.util.Assert;
+
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single download job: link, file to save resource to, information about resource
+ * that was retrieved from web server and progress of download.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class DownloadTask {
+    /**
+     * Link to download.
+     */
+    private final String address;
+
+    /**
+     * File to save resource to, null if resource is written to sink.
+     */
+    private final Path target;
+
+    /**
+     * Channel to write resource to in order, null if resource is saved to target.
+     */
+    private final WritableByteChannel sink;
+
+    /**
+     * Priority class of this link.
+     */
+    private final Priority priority;
+
+    /**
+     * Number of line in file with links or submission number. Used to keep
+     * the original order of links of the same priority.
+     */
+    private final long lineNumber;
+
+    /**
+     * Whether archive is extracted while it is downloading.
+     */
+    private final boolean extract;
+
+    /**
+     * Suffix of file resource is downloaded to before it is renamed to target.
+     */
+    private volatile String tempSuffix;
+
+    /**
+     * Size of resource in bytes, -1 if unknown.
+     */
+    private volatile long contentSize;
+
+    /**
+     * Whether web server supports partial download of resource.
+     */
+    private volatile boolean supportPartialContent;
+
+    /**
+     * Whether web server was already asked about resource.
+     */
+    private volatile boolean probed;
+
+    /**
+     * Time when download of this link was started, in milliseconds.
+     */
+    private volatile long startTime;
+
+    /**
+     * Bytes written to file so far by all downloading threads.
+     */
+    private final AtomicLong bytesDownloaded;
+
+    /**
+     * First error that happened during download, null if none.
+     */
+    private volatile Throwable error;
+
+    /**
+     * Future that is completed when file is downloaded.
+     */
+    private final CompletableFuture<DownloadResult> future;
+
+    /**
+     * Bytes written by every started block, by offset of block. Used as monitor
+     * by readers that wait for bytes to be written.
+     */
+    private final NavigableMap<Long, Long> writtenBlocks;
+
+    /**
+     * Whether all blocks are finished and nothing more will be written.
+     */
+    private volatile boolean blocksFinished;
+
+    /**
+     * Token of line in file with links that turns extraction on.
+     */
+    public static final String EXTRACT_TOKEN = "extract";
+
+    /**
+     * Suffix of file that is not downloaded completely yet.
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * Constructor.
+     *
+     * @param link Link to download.
+     * @param file File to save resource to.
+     * @param prior Priority class of this link.
+     * @param line Number of line in file with links or submission number.
+     */
+    public DownloadTask(String link, Path file, Priority prior, long line) {
+        this(link, file, prior, line, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param link Link to download.
+     * @param file File to save resource to.
+     * @param prior Priority class of this link.
+     * @param line Number of line in file with links or submission number.
+     * @param extractArchive Whether archive is extracted while it is downloading.
+     */
+    public DownloadTask(String link, Path file, Priority prior, long line, boolean extractArchive) {
+        this(link, file, null, prior, line, extractArchive);
+    }
+
+    /**
+     * Constructor of task that writes resource to channel in order.
+     *
+     * @param link Link to download.
+     * @param out Channel to write resource to.
+     * @param prior Priority class of this link.
+     * @param line Submission number.
+     */
+    public DownloadTask(String link, WritableByteChannel out, Priority prior, long line) {
+        this(link, null, out, prior, line, false);
+    }
+
+    private DownloadTask(String link, Path file, WritableByteChannel out, Priority prior, long line,
+                         boolean extractArchive) {
+        Assert.notNull(link, "Link must be not null");
+        Assert.isTrue((file == null) != (out == null), "Either file or channel must be specified");
+        Assert.notNull(prior, "Priority must be not null");
+
+        address = link;
+        target = file;
+        sink = out;
+        priority = prior;
+        lineNumber = line;
+        extract = extractArchive;
+        tempSuffix = PART_SUFFIX;
+        contentSize = -1;
+        writtenBlocks = new TreeMap<Long, Long>();
+        bytesDownloaded = new AtomicLong();
+        future = new CompletableFuture<DownloadResult>();
+    }
+
+    /**
+     * Parses line of file with links in format:
+     *
+     *     <HTTP-link><space><file name to save>[<space><priority>][<space>extract]
+     *
+     * @param line Line of file with links.
+     * @param outputFolder Folder to resolve file name against.
+     * @param lineNumber Number of line in file with links.
+     * @return task for the line.
+     * @throws IllegalArgumentException if line is malformed.
+     */
+    public static DownloadTask fromLine(String line, String outputFolder, long lineNumber) {
+        String [] list = line.split(" ");
+        if (list.length < 2) {
+            throw new IllegalArgumentException("Too few tokens in line: " + line);
+        }
+
+        Priority priority = Priority.NORMAL;
+        boolean extractArchive = false;
+        for (int k = 2; k < list.length; k++) {
+            if (EXTRACT_TOKEN.equalsIgnoreCase(list[k])) {
+                extractArchive = true;
+            } else if (k == 2 && Priority.fromString(list[k]) != null) {
+                priority = Priority.fromString(list[k]);
+            } else {
+                throw new IllegalArgumentException("Unknown token '" + list[k] + "' in line: " + line);
+            }
+        }
+
+        Path target = FileSystems.getDefault().getPath(outputFolder, list[1]);
+        return new DownloadTask(list[0], target, priority, lineNumber, extractArchive);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public WritableByteChannel getSink() {
+        return sink;
+    }
+
+    /**
+     * @return file resource is downloaded to before it is renamed to target.
+     */
+    public Path getTempTarget() {
+        return target.resolveSibling(target.getFileName() + tempSuffix);
+    }
+
+    /**
+     * Changes suffix of temporary file, so that processes downloading the same target
+     * never write to the same temporary file. Must be called before download starts.
+     *
+     * @param suffix Suffix of file resource is downloaded to.
+     */
+    public void setTempSuffix(String suffix) {
+        Assert.hasText(suffix, "Suffix must be not empty");
+        tempSuffix = suffix;
+    }
+
+    public boolean isExtract() {
+        return extract;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    public boolean isSupportPartialContent() {
+        return supportPartialContent;
+    }
+
+    public boolean isProbed() {
+        return probed;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long millis) {
+        startTime = millis;
+    }
+
+    /**
+     * Stores information retrieved from web server.
+     *
+     * @param size Size of resource in bytes, -1 if unknown.
+     * @param partialContent Whether web server supports partial download.
+     */
+    public void setProbeResult(long size, boolean partialContent) {
+        contentSize = size;
+        supportPartialContent = partialContent;
+        probed = true;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    /**
+     * Called by downloading threads after every write.
+     *
+     * @param n bytes written.
+     */
+    public void addBytesDownloaded(long n) {
+        bytesDownloaded.addAndGet(n);
+    }
+
+    /**
+     * Registers bytes written by block.
+     *
+     * @param blockStart Offset of block in file.
+     * @param n Bytes written by block after previous call.
+     */
+    public void addBytesWritten(long blockStart, long n) {
+        addBytesDownloaded(n);
+        synchronized (writtenBlocks) {
+            Long written = writtenBlocks.get(blockStart);
+            writtenBlocks.put(blockStart, (written != null) ? written + n : n);
+            writtenBlocks.notifyAll();
+        }
+    }
+
+    /**
+     * @param from Offset in file.
+     * @return end of range of written bytes that starts at from, from itself if byte at from is not written.
+     */
+    public long getWrittenUpTo(long from) {
+        synchronized (writtenBlocks) {
+            long pos = from;
+            // blocks do not overlap, so range goes on while the next block starts inside it
+            for (Map.Entry<Long, Long> block : writtenBlocks.entrySet()) {
+                if (block.getKey() > pos) {
+                    break;
+                }
+                pos = Math.max(pos, block.getKey() + block.getValue());
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * Waits till byte at from is written, all blocks are finished or time is out.
+     *
+     * @param from Offset in file.
+     * @param millis Maximum time to wait in milliseconds.
+     * @return end of range of written bytes that starts at from.
+     * @throws InterruptedException if thread is interrupted.
+     */
+    public long awaitWritten(long from, long millis) throws InterruptedException {
+        synchronized (writtenBlocks) {
+            long pos = getWrittenUpTo(from);
+            if (pos == from && !blocksFinished) {
+                writtenBlocks.wait(millis);
+                pos = getWrittenUpTo(from);
+            }
+            return pos;
+        }
+    }
+
+    public boolean isBlocksFinished() {
+        return blocksFinished;
+    }
+
+    /**
+     * Registers that all blocks are finished and wakes up readers.
+     */
+    public void setBlocksFinished() {
+        synchronized (writtenBlocks) {
+            blocksFinished = true;
+            writtenBlocks.notifyAll();
+        }
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Registers error, only the first one is kept.
+     *
+     * @param e error happened during download.
+     */
+    public synchronized void setError(Throwable e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    /**
+     * @return future that is completed when file is downloaded. Cancel it to stop download.
+     */
+    public CompletableFuture<DownloadResult> getFuture() {
+        return future;
+    }
+
+    /**
+     * Downloading threads check this flag to stop as soon as possible.
+     *
+     * @return true if download was cancelled or failed.
+     */
+    public boolean isStopped() {
+        return error != null || future.isCancelled();
+    }
+}
@@ -1,12 +1,15 @@
 package com.mika.task.consoledownloader;
 
 
+import com.mika.task.consoledownloader.jfr.BlockEvent;
+import com.mika.task.consoledownloader.jfr.FirstByteEvent;
+import com.mika.task.consoledownloader.jfr.TokenWaitEvent;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
 /**
@@ -22,15 +25,20 @@ public class Downloader implements Runnable {
     private final ReadableByteChannel rbc;
 
     /**
-     * Channel to write to.
+     * Output to write to.
      */
-    private final FileChannel outChannel;
+    private final BlockWriter outChannel;
 
     /**
-     * Offset in output file to start writing from.
+     * Offset in resource to start writing from.
      */
     private final long position;
 
+    /**
+     * Bytes to read, -1 to read till the end of stream.
+     */
+    private final long length;
+
     /**
      * Buffer size to read into.
      */
@@ -41,11 +49,27 @@ public class Downloader implements Runnable {
      */
     private long totalBytesRead;
 
+    /**
+     * Task this block belongs to, may be null.
+     * Used to report progress and to stop if task is cancelled.
+     */
+    private final DownloadTask task;
+
     /**
      * Method to call after download is finished.
      */
     private final ActionCallback actionCallback;
 
+    /**
+     * Event that waits for the first bytes of block, null when they are read.
+     */
+    private FirstByteEvent firstByteEvent;
+
+    /**
+     * Event of current wait for tokens, null if block does not wait.
+     */
+    private TokenWaitEvent tokenWaitEvent;
+
     /**
      * Logger to log messages.
      */
@@ -57,34 +81,61 @@ public class Downloader implements Runnable {
      * Constructor for downloading thread.
      *
      * @param readChannel Channel to read from.
-     * @param writeChannel Channel to write to.
-     * @param offset Offset in output file to start writing from.
+     * @param writeChannel Output to write to.
+     * @param offset Offset in resource to start writing from.
      * @param bufSize Buffer size in bytes to read into.
      * @param actCallback Method to call after download is finished.
      */
-    public Downloader(ReadableByteChannel readChannel, FileChannel writeChannel, long offset, int bufSize, ActionCallback actCallback) {
+    public Downloader(ReadableByteChannel readChannel, BlockWriter writeChannel, long offset, int bufSize, ActionCallback actCallback) {
+        this(readChannel, writeChannel, offset, -1, bufSize, null, actCallback);
+    }
+
+    /**
+     * Constructor for downloading thread that stops after specified amount of bytes.
+     * Allows to use response to open-ended range request as a block of limited size.
+     *
+     * @param readChannel Channel to read from.
+     * @param writeChannel Output to write to.
+     * @param offset Offset in resource to start writing from.
+     * @param len Bytes to read, -1 to read till the end of stream.
+     * @param bufSize Buffer size in bytes to read into.
+     * @param downloadTask Task this block belongs to, may be null.
+     * @param actCallback Method to call after download is finished.
+     */
+    public Downloader(ReadableByteChannel readChannel, BlockWriter writeChannel, long offset, long len, int bufSize,
+                      DownloadTask downloadTask, ActionCallback actCallback) {
         Assert.notNull(readChannel, "Channel to read from must be not null");
-        Assert.notNull(writeChannel, "Channel to write to must be not null");
+        Assert.notNull(writeChannel, "Output to write to must be not null");
         Assert.isTrue(offset >= 0, "Offset must be non-negative value");
+        Assert.isTrue(len >= -1, "Length must be non-negative value or -1");
         Assert.isTrue(bufSize > 0, "Read buffer size must be positive value");
 
         rbc = readChannel;
         outChannel = writeChannel;
         position = offset;
+        length = len;
         bufferSize = bufSize;
         totalBytesRead = 0;
 
+        task = downloadTask;
         actionCallback = actCallback;
     }
 
     @Override
     public void run() {
+        IOException error = null;
+        BlockEvent blockEvent = new BlockEvent();
+        blockEvent.begin();
+        firstByteEvent = new FirstByteEvent();
+        firstByteEvent.begin();
         try {
             ByteBuffer buf = ByteBuffer.allocate(bufferSize);
             LOGGER.debug("I am starting the download");
+            limitBuffer(buf);
             int bytesRead = rbc.read(buf);
             long curPos = position;
             while (bytesRead != -1) {
+                traceRead(bytesRead);
                 totalBytesRead += bytesRead;
 
                 buf.flip();  //make buffer ready for read
@@ -95,22 +146,110 @@ public class Downloader implements Runnable {
                         curPos += bytesWritten;
                     }
                 }
+                if (task != null) {
+                    task.addBytesWritten(position, bytesRead);
+                }
 
                 buf.clear(); //make buffer ready for writing
+                if (task != null && task.isStopped()) {
+                    LOGGER.debug("Task is stopped, I am leaving the block");
+                    break;
+                }
+                if (!limitBuffer(buf)) {
+                    LOGGER.debug("Block of {} bytes is complete", length);
+                    break;
+                }
                 bytesRead = rbc.read(buf);
                 if (bytesRead == -1) {
                     LOGGER.debug("Bytes read {}", bytesRead);
                 }
             }
 
-            rbc.close();
+            if (length >= 0 && totalBytesRead < length && (task == null || !task.isStopped())) {
+                throw new EOFException("Block is incomplete: " + totalBytesRead + " bytes of " + length);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            LOGGER.error("Download of block failed: {}", e.toString());
+            error = e;
+        } finally {
+            try {
+                rbc.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        blockEvent.end();
+        if (blockEvent.shouldCommit()) {
+            blockEvent.url = getAddress();
+            blockEvent.offset = position;
+            blockEvent.length = length;
+            blockEvent.bytes = totalBytesRead;
+            blockEvent.error = (error != null) ? error.toString() : null;
+            blockEvent.commit();
         }
 
         if (actionCallback != null) {
             LOGGER.debug("I am going to finish my task");
-            actionCallback.perform(outChannel, totalBytesRead);
+            actionCallback.perform(outChannel, totalBytesRead, error);
+        }
+    }
+
+    /**
+     * Commits event of the first bytes of block and measures waits for tokens:
+     * LimitedByteChannel reads nothing while there are no tokens.
+     *
+     * @param bytesRead Bytes returned by the last read.
+     */
+    private void traceRead(int bytesRead) {
+        if (bytesRead == 0) {
+            if (tokenWaitEvent == null) {
+                tokenWaitEvent = new TokenWaitEvent();
+                tokenWaitEvent.begin();
+            }
+            return;
+        }
+
+        if (tokenWaitEvent != null) {
+            tokenWaitEvent.end();
+            if (tokenWaitEvent.shouldCommit()) {
+                tokenWaitEvent.url = getAddress();
+                tokenWaitEvent.offset = position;
+                tokenWaitEvent.position = totalBytesRead;
+                tokenWaitEvent.commit();
+            }
+            tokenWaitEvent = null;
+        }
+        if (firstByteEvent != null) {
+            firstByteEvent.end();
+            if (firstByteEvent.shouldCommit()) {
+                firstByteEvent.url = getAddress();
+                firstByteEvent.offset = position;
+                firstByteEvent.length = length;
+                firstByteEvent.commit();
+            }
+            firstByteEvent = null;
+        }
+    }
+
+    private String getAddress() {
+        return (task != null) ? task.getAddress() : null;
+    }
+
+    /**
+     * Limits buffer so that nothing is read beyond the block.
+     *
+     * @param buf Buffer to limit.
+     * @return false if block is already complete.
+     */
+    private boolean limitBuffer(ByteBuffer buf) {
+        if (length < 0) {
+            return true;
+        }
+        long remaining = length - totalBytesRead;
+        if (remaining < buf.capacity()) {
+            buf.limit((int) remaining);
         }
+        return remaining > 0;
     }
 }
@@ -0,0 +1,44 @@
+package com.mika.task.consoledownloader;
+
+/**
+ * What is done to make downloaded file survive a crash before it is renamed
+ * from temporary name to its target name.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public enum Durability {
+    /**
+     * File is renamed without flushing, it may be lost or empty after a crash.
+     */
+    NONE,
+
+    /**
+     * Every completed file is flushed by the downloading thread that completed it, after
+     * its connection is released. Flushed files are renamed in groups by one thread,
+     * folder of the group is flushed once.
+     */
+    BATCH,
+
+    /**
+     * Every file and its folder are flushed right after the file is completed.
+     */
+    SYNC;
+
+    /**
+     * Parses durability name as specified in command line.
+     *
+     * @param name one of "none", "batch", "sync".
+     * @return durability or null if name is unknown.
+     */
+    public static Durability fromString(String name) {
+        if ("none".equalsIgnoreCase(name)) {
+            return NONE;
+        } else if ("batch".equalsIgnoreCase(name)) {
+            return BATCH;
+        } else if ("sync".equalsIgnoreCase(name)) {
+            return SYNC;
+        }
+        return null;
+    }
+}
@@ -55,7 +55,7 @@ public class LimitedByteChannel implements ReadableByteChannel {
             return read;
         }
 
-        int bufferSize = dst.capacity();
+        int bufferSize = dst.remaining();
 
         if (tokensLeft < bufferSize) {
             ByteBuffer newBuf = ByteBuffer.allocate((int) tokensLeft); // if tokensLeft < bufferSize we can truncate long to int
@@ -1,10 +1,18 @@
 package com.mika.task.consoledownloader;
 
+import com.mika.task.consoledownloader.impl.AimdConnectionController;
 import com.mika.task.consoledownloader.impl.DownloadManagerImpl;
+import com.mika.task.consoledownloader.impl.LeaseFileCoordinator;
 import org.apache.commons.cli.*;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Main class of console downloader.
@@ -29,6 +37,11 @@ public class Main {
      */
     private static final String DEFAULT_LINKS_FILE = "links.txt";
 
+    /**
+     * Maximum TCP port number.
+     */
+    private static final int MAX_PORT = 65535;
+
     /**
      * Logger to log messages.
      */
@@ -44,17 +57,38 @@ public class Main {
         String sLim = "l";
         String oFol = "o";
         String inFile = "f";
+        String order = "s";
+        String daemonPort = "d";
+        String spool = "i";
+        String shared = "w";
+        String commit = "c";
+        String adaptive = "a";
+        String pipe = "p";
 
         Options options = new Options();
         options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Download threads count").create(nThreads));
         options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Download speed limit").create(sLim));
-        options.addOption(OptionBuilder.isRequired(true).hasArg(true).withDescription("Output folder").create(oFol));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Output folder").create(oFol));
         options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Path to file with download links").create(inFile));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Download order: manifest, shortest or largest").create(order));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Run as daemon listening on specified loopback port").create(daemonPort));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Spool folder of daemon to take files with links from").create(spool));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Shared folder to split links between several processes").create(shared));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Durability of completed files: none, batch or sync").create(commit));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Adapt connections per host up to threads count, keep learned counts in specified file").create(adaptive));
+        options.addOption(OptionBuilder.isRequired(false).hasArg(true).withDescription("Write specified link to standard output").create(pipe));
 
         int threadsCount = DEFAULT_THREADS_COUNT;
         long downloadSpeed = DEFAULT_SPEED_LIMIT;
         String outputFolder = null;
         String downloadList = DEFAULT_LINKS_FILE;
+        DownloadOrder downloadOrder = DownloadOrder.MANIFEST;
+        int port = -1;
+        String spoolFolder = null;
+        String sharedFolder = null;
+        Durability durability = Durability.BATCH;
+        ConnectionController connectionController = null;
+        String pipeLink = null;
 
         final int BYTES_IN_KB = 1024;
         final int BYTES_IN_MB = 1024 * 1024;
@@ -63,6 +97,13 @@ public class Main {
         try {
             CommandLine cmd = parser.parse(options, args);
 
+            if (cmd.hasOption(pipe)) {
+                pipeLink = cmd.getOptionValue(pipe);
+            } else if (!cmd.hasOption(oFol)) {
+                LOGGER.error("Output folder is required unless link is written to standard output");
+                System.exit(1);
+            }
+
             if (cmd.hasOption(nThreads)) {
                 threadsCount = Integer.valueOf(cmd.getOptionValue(nThreads));
 
@@ -120,12 +161,122 @@ public class Main {
                     System.exit(1);
                 }
             }
+
+            if (cmd.hasOption(order)) {
+                downloadOrder = DownloadOrder.fromString(cmd.getOptionValue(order));
+
+                if (downloadOrder == null) {
+                    LOGGER.error("Incorrect download order specified");
+                    System.exit(1);
+                }
+            }
+
+            if (cmd.hasOption(daemonPort)) {
+                port = Integer.valueOf(cmd.getOptionValue(daemonPort));
+
+                if (port < 0 || port > MAX_PORT) {
+                    LOGGER.error("Incorrect daemon port specified");
+                    System.exit(1);
+                }
+            }
+
+            if (cmd.hasOption(spool)) {
+                spoolFolder = cmd.getOptionValue(spool);
+
+                File f = new File(spoolFolder);
+                if (!f.exists() || !f.isDirectory() || port < 0) {
+                    LOGGER.error("Incorrect spool folder specified, it requires daemon mode");
+                    System.exit(1);
+                }
+            }
+
+            if (cmd.hasOption(commit)) {
+                durability = Durability.fromString(cmd.getOptionValue(commit));
+
+                if (durability == null) {
+                    LOGGER.error("Incorrect durability specified");
+                    System.exit(1);
+                }
+            }
+
+            if (cmd.hasOption(adaptive)) {
+                try {
+                    connectionController = new AimdConnectionController(threadsCount, cmd.getOptionValue(adaptive));
+                } catch (IOException e) {
+                    LOGGER.error("Incorrect file of learned connections specified: {}", e.getMessage());
+                    System.exit(1);
+                }
+            }
+
+            if (cmd.hasOption(shared)) {
+                sharedFolder = cmd.getOptionValue(shared);
+
+                if (port >= 0) {
+                    LOGGER.error("Shared folder can not be used in daemon mode");
+                    System.exit(1);
+                }
+            }
         } catch (ParseException exp) {
             LOGGER.error("Parsing failed.  Reason: {}", exp.getMessage());
             System.exit(1);
         }
 
-        DownloadManager dm = new DownloadManagerImpl(threadsCount, downloadSpeed, outputFolder, downloadList);
+        if (pipeLink != null) {
+            System.exit(writeToStandardOutput(pipeLink, threadsCount, downloadSpeed, connectionController));
+        }
+
+        if (port >= 0) {
+            DownloadManagerImpl dm = new DownloadManagerImpl(threadsCount, downloadSpeed);
+            dm.setDurability(durability);
+            dm.setConnectionController(connectionController);
+            try {
+                new DownloadDaemon(dm, outputFolder, port, spoolFolder).run();
+            } catch (IOException e) {
+                LOGGER.error("Daemon failed: {}", e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        DownloadManagerImpl dm = new DownloadManagerImpl(threadsCount, downloadSpeed, outputFolder, downloadList, downloadOrder);
+        dm.setDurability(durability);
+        dm.setConnectionController(connectionController);
+        if (sharedFolder != null) {
+            try {
+                dm.setShardCoordinator(new LeaseFileCoordinator(sharedFolder));
+            } catch (IOException e) {
+                LOGGER.error("Incorrect shared folder specified: {}", e.getMessage());
+                System.exit(1);
+            }
+        }
         dm.startDownload();
+        dm.shutdown();
+    }
+
+    /**
+     * Downloads link with all threads and writes it to standard output in order.
+     *
+     * @return exit code of process.
+     */
+    private static int writeToStandardOutput(String link, int threadsCount, long downloadSpeed,
+                                             ConnectionController connectionController) {
+        // standard output carries the resource, so messages go to standard error
+        WritableByteChannel out = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        System.setOut(System.err);
+
+        DownloadManagerImpl dm = new DownloadManagerImpl(threadsCount, downloadSpeed);
+        dm.setConnectionController(connectionController);
+        int exitCode = 0;
+        try {
+            dm.submit(link, out, Priority.NORMAL).get();
+        } catch (ExecutionException e) {
+            LOGGER.error("{} failed: {}", link, e.getCause().toString());
+            exitCode = 1;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            exitCode = 1;
+        }
+        dm.shutdown();
+        return exitCode;
     }
 }
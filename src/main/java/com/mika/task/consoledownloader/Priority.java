@@ -0,0 +1,46 @@
+package com.mika.task.consoledownloader;
+
+/**
+ * Priority class of a download link.
+ * Links of higher priority are started first and get
+ * larger share of download speed limit.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public enum Priority {
+    HIGH(4),
+    NORMAL(2),
+    LOW(1);
+
+    /**
+     * Relative share of bandwidth for this priority class.
+     */
+    private final int weight;
+
+    Priority(int bandwidthWeight) {
+        weight = bandwidthWeight;
+    }
+
+    /**
+     * @return relative share of bandwidth for this priority class.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Parses priority name as specified in file with links.
+     *
+     * @param name priority name, case insensitive.
+     * @return priority or null if name is unknown.
+     */
+    public static Priority fromString(String name) {
+        for (Priority p : values()) {
+            if (p.name().equalsIgnoreCase(name)) {
+                return p;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+package com.mika.task.consoledownloader;
+
+/**
+ * Listener of download progress. Progress is reported periodically,
+ * not on every write, so listener is cheap even for many small files.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public interface ProgressListener {
+    /**
+     * Called periodically for every file that is being downloaded
+     * and has got new bytes since the last call.
+     *
+     * @param task file being downloaded, see getBytesDownloaded() and getContentSize().
+     */
+    void progress(DownloadTask task);
+
+    /**
+     * Called after download of file is finished, failed or cancelled
+     * and all its downloading threads have stopped. See task.getFuture() for result.
+     *
+     * @param task finished file.
+     */
+    void finished(DownloadTask task);
+}
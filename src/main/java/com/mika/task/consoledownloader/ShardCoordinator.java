@@ -0,0 +1,77 @@
+package com.mika.task.consoledownloader;
+
+import java.io.IOException;
+
+/**
+ * Coordinator of several download manager processes that share one file with links.
+ * Every link is claimed by one process at a time. Claims of dead processes are
+ * taken over by the living ones. Run it in its own thread to keep claims alive.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public interface ShardCoordinator extends Runnable {
+    /**
+     * @return id of this process, unique among processes sharing links and usable in file names.
+     */
+    String getWorkerId();
+
+    /**
+     * Tries to claim link for this process.
+     *
+     * @param address link to claim.
+     * @return true if link is claimed by this process, false if it is claimed by another one or finished.
+     * @throws IOException if shared storage is not available.
+     */
+    boolean tryClaim(String address) throws IOException;
+
+    /**
+     * @param address link.
+     * @return true if link is still claimed by this process.
+     */
+    boolean isOwned(String address);
+
+    /**
+     * @param address link.
+     * @return true if link was downloaded or failed in any process.
+     * @throws IOException if shared storage is not available.
+     */
+    boolean isFinished(String address) throws IOException;
+
+    /**
+     * @param address link.
+     * @return path of file link was downloaded to, null if link is not downloaded.
+     * @throws IOException if shared storage is not available.
+     */
+    String getDownloadedPath(String address) throws IOException;
+
+    /**
+     * Registers that link is downloaded and releases claim.
+     *
+     * @param address link.
+     * @param path path of file link was downloaded to.
+     * @throws IOException if shared storage is not available.
+     */
+    void downloaded(String address, String path) throws IOException;
+
+    /**
+     * Registers that link failed and releases claim. Failed links are not retried.
+     *
+     * @param address link.
+     * @param error error description.
+     * @throws IOException if shared storage is not available.
+     */
+    void failed(String address, String error) throws IOException;
+
+    /**
+     * Releases claim without finishing link, so that another process can take it.
+     *
+     * @param address link.
+     */
+    void release(String address);
+
+    /**
+     * Stops this threads` work.
+     */
+    void shutdown();
+}
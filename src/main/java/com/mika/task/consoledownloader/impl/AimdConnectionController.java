@@ -0,0 +1,285 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.ConnectionController;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * ConnectionController that learns number of connections per host like TCP learns its window:
+ * adds one connection while throughput from the host keeps improving, and divides number of
+ * connections on throughput plateau, 429 or 503 responses and connection resets.
+ *
+ * Throughput is evaluated over intervals of a few seconds. Intervals when host did not use
+ * all its connections most of the time tell nothing about more connections and are skipped.
+ *
+ * The best number of connections found for every host is kept in properties file
+ * and used as a starting point in the next run.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class AimdConnectionController implements ConnectionController {
+    /**
+     * What is known about one host.
+     */
+    private static class HostState {
+        /**
+         * Number of connections that may be open to host at once.
+         */
+        private int connections;
+
+        /**
+         * Throughput of the last evaluated interval, bytes per second, 0 if there is nothing to compare with.
+         */
+        private long lastThroughput;
+
+        /**
+         * Bytes downloaded during current interval.
+         */
+        private long intervalBytes;
+
+        /**
+         * Length of current interval in milliseconds.
+         */
+        private long intervalMillis;
+
+        /**
+         * Number of samples in current interval.
+         */
+        private int samples;
+
+        /**
+         * Number of samples in current interval when host used all its connections.
+         */
+        private int saturatedSamples;
+
+        /**
+         * Number of connections that gave the best throughput.
+         */
+        private int bestConnections;
+
+        /**
+         * Best throughput seen, bytes per second.
+         */
+        private long bestThroughput;
+
+        /**
+         * Time of the last decrease caused by congestion, in milliseconds.
+         */
+        private long lastDecrease;
+
+        HostState(int start) {
+            connections = start;
+            bestConnections = start;
+        }
+    }
+
+    /**
+     * Upper bound of connections per file.
+     */
+    private final int maxConnections;
+
+    /**
+     * Properties file to keep the best numbers of connections in, null to keep nothing.
+     */
+    private final File stateFile;
+
+    /**
+     * State of every host.
+     */
+    private final Map<String, HostState> hosts;
+
+    /**
+     * Best numbers of connections loaded from stateFile.
+     */
+    private final Properties learned;
+
+    /**
+     * Number of connections to start with for unknown host.
+     */
+    private static final int INITIAL_CONNECTIONS = 2;
+
+    /**
+     * Part by which throughput must grow to be considered an improvement.
+     */
+    private static final double IMPROVEMENT = 0.1;
+
+    /**
+     * Factor of decrease on throughput plateau.
+     */
+    private static final double PLATEAU_DECREASE = 0.75;
+
+    /**
+     * Factor of decrease on refused or reset connections.
+     */
+    private static final double CONGESTION_DECREASE = 0.5;
+
+    /**
+     * Time after decrease when other congestion signals are considered the same event, in milliseconds.
+     */
+    private static final long CONGESTION_INTERVAL = 1000;
+
+    /**
+     * Length of interval throughput is evaluated over, in milliseconds.
+     */
+    private static final long EVALUATION_INTERVAL = 2000;
+
+    private static final int MILLISECONDS_IN_SECOND = 1000;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Logger to log messages.
+     */
+    private static final ch.qos.logback.classic.Logger LOGGER =
+            (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(AimdConnectionController.class);
+
+    /**
+     * Constructor.
+     *
+     * @param max Upper bound of connections per file.
+     * @param file Properties file to keep the best numbers of connections in, may be null.
+     * @throws IOException if existing file could not be read.
+     */
+    public AimdConnectionController(int max, String file) throws IOException {
+        Assert.isTrue(max > 0, "Maximum number of connections must be positive value");
+
+        maxConnections = max;
+        stateFile = (file != null) ? new File(file) : null;
+        hosts = new HashMap<String, HostState>();
+        learned = new Properties();
+
+        if (stateFile != null && stateFile.exists()) {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                learned.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getConnections(String host) {
+        return getState(host).connections;
+    }
+
+    @Override
+    public synchronized void transferred(String host, long bytes, long millis, int connections) {
+        HostState state = getState(host);
+        state.intervalBytes += bytes;
+        state.intervalMillis += millis;
+        state.samples++;
+        if (connections >= state.connections) {
+            state.saturatedSamples++;
+        }
+        if (state.intervalMillis < EVALUATION_INTERVAL) {
+            return;
+        }
+
+        long throughput = state.intervalBytes * MILLISECONDS_IN_SECOND / state.intervalMillis;
+        boolean saturated = state.saturatedSamples * 2 >= state.samples;
+        resetInterval(state);
+        if (!saturated) {
+            return;
+        }
+
+        // the fewest connections that give the best throughput are remembered
+        if (throughput > state.bestThroughput * (1 + IMPROVEMENT) || (state.connections < state.bestConnections
+                && throughput >= state.bestThroughput * (1 - IMPROVEMENT))) {
+            state.bestThroughput = throughput;
+            state.bestConnections = state.connections;
+        }
+
+        int previous = state.connections;
+        if (state.lastThroughput == 0 || throughput > state.lastThroughput * (1 + IMPROVEMENT)) {
+            state.connections = Math.min(state.connections + 1, maxConnections);
+            state.lastThroughput = throughput;
+        } else if (state.connections < maxConnections || throughput < state.lastThroughput * (1 - IMPROVEMENT)) {
+            // the next interval is not compared with this one, so that connections are added again
+            state.connections = decrease(state.connections, PLATEAU_DECREASE);
+            state.lastThroughput = 0;
+        } else {
+            state.lastThroughput = throughput;
+        }
+        LOGGER.debug("{}: {} bytes/sec with {} connections, now {}",
+                new Object[] {host, throughput, previous, state.connections});
+    }
+
+    @Override
+    public synchronized void congested(String host) {
+        HostState state = getState(host);
+        long now = System.currentTimeMillis();
+        if (now - state.lastDecrease < CONGESTION_INTERVAL) {
+            return;
+        }
+        state.lastDecrease = now;
+        state.connections = decrease(state.connections, CONGESTION_DECREASE);
+        // throughput measured before congestion is not reachable anymore
+        state.lastThroughput = 0;
+        resetInterval(state);
+        LOGGER.debug("{} is congested, now {} connections", host, state.connections);
+    }
+
+    @Override
+    public synchronized void save() throws IOException {
+        if (stateFile == null) {
+            return;
+        }
+        for (Map.Entry<String, HostState> entry : hosts.entrySet()) {
+            learned.setProperty(entry.getKey(), String.valueOf(entry.getValue().bestConnections));
+        }
+
+        // file is replaced at once, so a crash or another run reading it never sees it half written
+        File folder = stateFile.getAbsoluteFile().getParentFile();
+        Path tmp = Files.createTempFile(folder.toPath(), stateFile.getName(), TMP_SUFFIX);
+        try {
+            OutputStream out = Files.newOutputStream(tmp);
+            try {
+                learned.store(out, "Best number of connections per host");
+            } finally {
+                out.close();
+            }
+            Files.move(tmp, stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private HostState getState(String host) {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            int start = Math.min(INITIAL_CONNECTIONS, maxConnections);
+            String value = learned.getProperty(host);
+            if (value != null) {
+                try {
+                    start = Math.max(1, Math.min(Integer.parseInt(value), maxConnections));
+                } catch (NumberFormatException e) {
+                    LOGGER.error("Incorrect number of connections for {}: {}", host, value);
+                }
+            }
+            state = new HostState(start);
+            hosts.put(host, state);
+        }
+        return state;
+    }
+
+    private static void resetInterval(HostState state) {
+        state.intervalBytes = 0;
+        state.intervalMillis = 0;
+        state.samples = 0;
+        state.saturatedSamples = 0;
+    }
+
+    private static int decrease(int connections, double factor) {
+        return Math.max(1, (int) (connections * factor));
+    }
+}
@@ -0,0 +1,299 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.DownloadTask;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Extracts archive while it is downloading, so that files are usable soon after
+ * download is complete and archive is not read from disk once more.
+ *
+ * Tar archives, plain or compressed, are read as soon as a contiguous prefix is written.
+ * Zip archives are opened from the central directory: the tail of resource is fetched
+ * with a separate ranged request made by download manager, and entries are extracted in the order of their
+ * offsets as their bytes are written by blocks.
+ *
+ * Files are extracted into folder named after archive without its suffix.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class ArchiveExtractor implements Runnable {
+    /**
+     * Fetches range of resource through connections of download manager.
+     */
+    interface RangeFetcher {
+        /**
+         * @param task Task whose resource is fetched.
+         * @param start Offset of the first byte.
+         * @param length Number of bytes.
+         * @return bytes of range or null if web server does not send it as partial content.
+         * @throws IOException if request fails or download is stopped.
+         */
+        byte[] fetch(DownloadTask task, long start, int length) throws IOException;
+    }
+
+    /**
+     * Supported archive formats.
+     */
+    enum Format {
+        TAR(".tar"),
+        TAR_GZ(".tar.gz", ".tgz"),
+        TAR_BZ2(".tar.bz2", ".tbz2"),
+        TAR_ZST(".tar.zst", ".tzst"),
+        ZIP(".zip");
+
+        /**
+         * File name suffixes of format.
+         */
+        private final String[] suffixes;
+
+        Format(String... suffixes) {
+            this.suffixes = suffixes;
+        }
+
+        /**
+         * @param fileName name of archive.
+         * @return format of archive or null if it is not supported.
+         */
+        static Format of(String fileName) {
+            String name = fileName.toLowerCase();
+            for (Format format : values()) {
+                if (format.suffixOf(name) != null) {
+                    return format;
+                }
+            }
+            return null;
+        }
+
+        private String suffixOf(String name) {
+            for (String suffix : suffixes) {
+                // name must not be the suffix alone, there would be no name for the folder
+                if (name.endsWith(suffix) && name.length() > suffix.length()) {
+                    return suffix;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Task that downloads archive.
+     */
+    private final DownloadTask task;
+
+    /**
+     * Format of archive.
+     */
+    private final Format format;
+
+    /**
+     * Fetcher of tail of zip archive.
+     */
+    private final RangeFetcher fetcher;
+
+    /**
+     * Folder to extract files to.
+     */
+    private final Path folder;
+
+    /**
+     * Future that is completed when archive is extracted.
+     */
+    private final CompletableFuture<Void> future;
+
+    /**
+     * Size of tail of zip archive fetched before download is complete. Enough for central
+     * directory of some hundreds of files, larger directories are read as blocks arrive.
+     */
+    private static final int ZIP_TAIL_SIZE = 64 * 1024;
+
+    /**
+     * Encoding of names of zip entries that do not declare it, the default of ZipFile.
+     */
+    private static final String ZIP_ENCODING = "UTF8";
+
+    /**
+     * Size of buffer to read archive with.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Logger to log messages.
+     */
+    private static final ch.qos.logback.classic.Logger LOGGER =
+            (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(ArchiveExtractor.class);
+
+    /**
+     * Constructor.
+     *
+     * @param downloadTask Task that downloads archive, its size must be already known if it is.
+     * @param archiveFormat Format of archive.
+     * @param rangeFetcher Fetcher of range of resource ahead of download.
+     */
+    ArchiveExtractor(DownloadTask downloadTask, Format archiveFormat, RangeFetcher rangeFetcher) {
+        Assert.notNull(downloadTask, "Task must be not null");
+        Assert.notNull(archiveFormat, "Format must be not null");
+        Assert.notNull(rangeFetcher, "Range fetcher must be not null");
+
+        task = downloadTask;
+        format = archiveFormat;
+        fetcher = rangeFetcher;
+        String fileName = task.getTarget().getFileName().toString();
+        folder = task.getTarget().resolveSibling(
+                fileName.substring(0, fileName.length() - format.suffixOf(fileName.toLowerCase()).length()));
+        future = new CompletableFuture<Void>();
+    }
+
+    /**
+     * @return future that is completed when archive is extracted.
+     */
+    CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    @Override
+    public void run() {
+        try {
+            LOGGER.info("Extracting {} to {}", task.getTarget().getFileName(), folder);
+            Files.createDirectories(folder);
+            if (format == Format.ZIP) {
+                extractZip();
+            } else {
+                extractTar();
+            }
+            LOGGER.info("{} is extracted", task.getTarget().getFileName());
+            future.complete(null);
+        } catch (IOException e) {
+            LOGGER.error("Extraction of {} failed: {}", task.getTarget().getFileName(), e.toString());
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            // archive libraries report some broken archives with unchecked exceptions
+            LOGGER.error("Extraction of {} failed: {}", task.getTarget().getFileName(), e.toString());
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void extractTar() throws IOException {
+        InputStream in = new BufferedInputStream(
+                Channels.newInputStream(new DownloadingFileChannel(task, task.getTempTarget(), null)), READ_BUFFER_SIZE);
+        try {
+            switch (format) {
+                case TAR_GZ:
+                    in = new GzipCompressorInputStream(in);
+                    break;
+                case TAR_BZ2:
+                    in = new BZip2CompressorInputStream(in);
+                    break;
+                case TAR_ZST:
+                    in = new ZstdCompressorInputStream(in);
+                    break;
+                default:
+                    break;
+            }
+
+            ArchiveInputStream archive = new TarArchiveInputStream(in);
+            in = archive;
+            ArchiveEntry entry;
+            while ((entry = archive.getNextEntry()) != null) {
+                Path path = entryPath(entry.getName());
+                if (path == null) {
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                } else if (((TarArchiveEntry) entry).isFile()) {
+                    Files.createDirectories(path.getParent());
+                    Files.copy(archive, path, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    LOGGER.debug("Skipping {}, it is not a regular file", entry.getName());
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void extractZip() throws IOException {
+        // local headers are read when entry is extracted, not when zip is opened, otherwise opening
+        // would wait for local headers of all entries, that is for nearly the whole archive
+        ZipFile zip = new ZipFile(new DownloadingFileChannel(task, task.getTempTarget(), fetchTail()),
+                task.getTarget().toString(), ZIP_ENCODING, true, true);
+        try {
+            // entries are read in order of their offsets, the same order blocks are written in
+            Enumeration<ZipArchiveEntry> entries = zip.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                Path path = entryPath(entry.getName());
+                if (path == null) {
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                } else if (zip.canReadEntryData(entry)) {
+                    Files.createDirectories(path.getParent());
+                    InputStream in = zip.getInputStream(entry);
+                    try {
+                        Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    throw new IOException("Unsupported compression or encryption of " + entry.getName());
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Fetches the last bytes of resource that contain central directory of zip archive.
+     *
+     * @return tail of resource or null if it can not be fetched separately.
+     */
+    private byte[] fetchTail() {
+        long size = task.getContentSize();
+        if (size <= 0 || !task.isSupportPartialContent()) {
+            return null;
+        }
+
+        int length = (int) Math.min(size, ZIP_TAIL_SIZE);
+        try {
+            return fetcher.fetch(task, size - length, length);
+        } catch (IOException e) {
+            LOGGER.debug("Tail of {} is not fetched: {}", task.getAddress(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @param name name of archive entry.
+     * @return path to extract entry to or null if entry points outside of folder.
+     */
+    private Path entryPath(String name) {
+        Path path = folder.resolve(name).normalize();
+        if (!path.startsWith(folder.normalize())) {
+            LOGGER.error("Skipping {}, it points outside of {}", name, folder);
+            return null;
+        }
+        return path;
+    }
+}
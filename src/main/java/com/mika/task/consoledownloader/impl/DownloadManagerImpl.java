@@ -1,6 +1,8 @@
 package com.mika.task.consoledownloader.impl;
 
 import com.mika.task.consoledownloader.*;
+import com.mika.task.consoledownloader.jfr.ConnectEvent;
+import com.mika.task.consoledownloader.jfr.ProbeEvent;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
@@ -11,29 +13,165 @@ import org.springframework.util.StopWatch;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 
 /**
  * Implementation of DownloadManager interface.
  *
+ * Files are submitted into priority queue and dispatcher thread passes them one by one
+ * to downloading threads as connections to their hosts become free. Downloading threads
+ * make the requests, so dispatcher never waits for web server. Downloading threads,
+ * speed limit and progress reporting are shared by all submitted files until shutdown() is called.
+ *
  * @author Mikhail Gushinets
  * @since 01/09/2014
  */
 public class DownloadManagerImpl implements DownloadManager {
 
+    /**
+     * Block of file after the first one, that makes its own ranged request. Range of resource
+     * that extraction of archive needs ahead of download is fetched into memory the same way.
+     */
+    private class Block implements Runnable {
+        /**
+         * Task whose resource is downloaded.
+         */
+        private final DownloadTask task;
+
+        /**
+         * Host and port of link, the block takes a connection to it.
+         */
+        private final String host;
+
+        /**
+         * Output to write block to, null if block is fetched into memory.
+         */
+        private final BlockWriter outChannel;
+
+        /**
+         * Number of block in file, -1 if block is fetched into memory.
+         */
+        private final int index;
+
+        /**
+         * Offset of the first byte of block.
+         */
+        private final long start;
+
+        /**
+         * Number of bytes in block, -1 if block is read till the end of stream.
+         */
+        private final long length;
+
+        /**
+         * Value of Range header of request.
+         */
+        private final String range;
+
+        /**
+         * TokenBucket of priority class of file, null if download speed is not limited.
+         */
+        private final TokenBucket bucket;
+
+        /**
+         * Order of block among blocks of the same file waiting for connection.
+         */
+        private final long sequence;
+
+        /**
+         * Future of bytes of block fetched into memory, null if block is written to outChannel.
+         */
+        private final CompletableFuture<byte[]> fetched;
+
+        Block(DownloadTask task, String host, BlockWriter outChannel, int index, long start, long length, String range,
+              TokenBucket bucket) {
+            this.task = task;
+            this.host = host;
+            this.outChannel = outChannel;
+            this.index = index;
+            this.start = start;
+            this.length = length;
+            this.range = range;
+            this.bucket = bucket;
+            this.sequence = blockCounter.incrementAndGet();
+            this.fetched = null;
+        }
+
+        Block(DownloadTask task, long start, int length, TokenBucket bucket) {
+            this.task = task;
+            this.host = hostOf(task.getAddress());
+            this.outChannel = null;
+            this.index = -1;
+            this.start = start;
+            this.length = length;
+            this.range = RANGE_BYTES_STRING + start + "-" + (start + length - 1);
+            this.bucket = bucket;
+            // extraction waits for the range, so it goes ahead of blocks of its file
+            this.sequence = -blockCounter.incrementAndGet();
+            this.fetched = new CompletableFuture<byte[]>();
+        }
+
+        public void run() {
+            if (fetched != null) {
+                fetchBlock(this);
+            } else {
+                downloadBlock(this);
+            }
+        }
+    }
+
+    /**
+     * Blocks of resource written to channel. Only blocks that fit in reorder buffer together
+     * with all bytes before them are running, the next block starts when the earliest one ends.
+     */
+    private static class BlockWindow {
+        /**
+         * Task whose resource is written to channel.
+         */
+        private final DownloadTask task;
+
+        /**
+         * Blocks that are not started yet, in order of their offsets.
+         */
+        private final Deque<Block> notStarted;
+
+        /**
+         * Indexes of blocks that are started and not ended yet.
+         */
+        private final NavigableSet<Integer> running;
+
+        /**
+         * Number of blocks that fit in reorder buffer.
+         */
+        private final int size;
+
+        BlockWindow(DownloadTask task, List<Block> blocks, int size) {
+            this.task = task;
+            this.notStarted = new ArrayDeque<Block>(blocks);
+            this.running = new TreeSet<Integer>();
+            this.size = size;
+            // the first block reads response to the first request
+            running.add(0);
+        }
+    }
+
     /**
      * Number of downloading threads.
      */
@@ -45,28 +183,28 @@ public class DownloadManagerImpl implements DownloadManager {
     private final long downloadSpeed;
 
     /**
-     * Folder to download files to.
+     * Folder to download files to, null if manager is used without file with links.
      */
     private final String outputFolder;
 
     /**
-     * Full path to file containing download links.
+     * Full path to file containing download links, null if manager is used without file with links.
      */
     private final String downloadList;
 
     /**
-     * Bytes totally downloaded.
+     * Map that stores output and number of threads currently
+     * writing into this output. Required to decide when to close output.
      */
-    private long totalBytesDownloaded;
+    private final Map<BlockWriter, Integer> outputFilesMap;
 
     /**
-     * Map that stores output channel and number of threads currently
-     * writing into this channel. Required to decide when to close channel.
+     * Map that stores output and task being downloaded into this output.
      */
-    private final Map<SeekableByteChannel, Integer> outputFilesMap;
+    private final Map<BlockWriter, DownloadTask> outputTasksMap;
 
     /**
-     * Map that stores already downloaded resources and names.
+     * Map that stores already downloaded resources and paths.
      */
     private final Map<String, String> resourcesMap;
 
@@ -76,9 +214,116 @@ public class DownloadManagerImpl implements DownloadManager {
     private final Map<String, Set<String>> copyResourcesMap;
 
     /**
-     * Object that implements TokenBucket interface.
+     * Order of links of the same priority class.
+     */
+    private final Comparator<DownloadTask> downloadOrder;
+
+    /**
+     * Queue of submitted files that are not started yet.
+     */
+    private final PriorityBlockingQueue<DownloadTask> queue;
+
+    /**
+     * Files submitted and not finished yet.
+     */
+    private final Set<DownloadTask> pendingTasks;
+
+    /**
+     * Listeners of download progress.
+     */
+    private final List<ProgressListener> progressListeners;
+
+    /**
+     * Bytes downloaded at the moment of the last progress report, for every file in progress.
+     */
+    private final Map<DownloadTask, Long> reportedBytes;
+
+    /**
+     * Number of connections open to every host.
+     */
+    private final Map<String, Integer> hostConnections;
+
+    /**
+     * Files taken from queue while all connections to their host were open, by host.
+     * Guarded by this.
+     */
+    private final Map<String, Queue<DownloadTask>> parkedTasks;
+
+    /**
+     * Blocks of started files waiting for a connection to their host, in queue order of
+     * their files. Guarded by this.
+     */
+    private final NavigableSet<Block> waitingBlocks;
+
+    /**
+     * Blocks of resources written to channels, by output. Guarded by this.
+     */
+    private final Map<BlockWriter, BlockWindow> blockWindows;
+
+    /**
+     * Counter to keep order of blocks of the same file.
+     */
+    private final AtomicLong blockCounter;
+
+    /**
+     * Bytes downloaded from every host and not yet passed to connectionController.
+     */
+    private final Map<String, AtomicLong> hostBytes;
+
+    /**
+     * Time of the last progress report in milliseconds.
+     */
+    private long lastReportTime;
+
+    /**
+     * Counter to keep order of files submitted with the same priority.
+     */
+    private final AtomicLong submissionCounter;
+
+    /**
+     * Coordinator of processes sharing file with links, null if this process downloads all links.
+     */
+    private ShardCoordinator shardCoordinator;
+
+    /**
+     * Controller of connections per host, null to let every host use all threads.
+     */
+    private ConnectionController connectionController;
+
+    /**
+     * What is done to make completed files survive a crash.
+     */
+    private Durability durability;
+
+    /**
+     * Committer that moves completed files to their target names.
+     */
+    private FileCommitter fileCommitter;
+
+    /**
+     * Thread that commits files in BATCH durability.
+     */
+    private Thread fileCommitterThread;
+
+    /**
+     * TokenBucket that splits download speed limit between priority classes.
+     */
+    private PriorityTokenBucket tokenBucket;
+
+    /**
+     * Thread that refreshes tokenBucket.
+     */
+    private Thread tokenBucketThread;
+
+    /**
+     * Thread that takes files from queue and creates download tasks.
+     */
+    private Thread dispatcherThread;
+
+    /**
+     * Executor service for progress reports.
      */
-    private TokenBucket tokenBucket;
+    private ScheduledExecutorService progressService;
 
     /**
      * Number of threads currently not working.
@@ -90,21 +335,81 @@ public class DownloadManagerImpl implements DownloadManager {
      */
     private ExecutorService executorService;
 
+    /**
+     * Executor service for extraction of archives.
+     */
+    private ExecutorService extractorService;
+
+    /**
+     * Extraction of every archive being downloaded.
+     */
+    private final Map<DownloadTask, CompletableFuture<Void>> extractions;
+
+    /**
+     * Whether threads are started.
+     */
+    private boolean started;
+
+    /**
+     * Whether shutdown() was called.
+     */
+    private volatile boolean shutdown;
+
     /**
      * Default buffer size in bytes.
      */
     private static final int DOWNLOAD_BUFFER_SIZE = 4096;
 
+    /**
+     * Maximum bytes held in reorder buffer of resource that is written to channel.
+     */
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024 * 1024;
+
     /**
      * Time to wait for termination of executorService.
      */
     private static final int TIME_TO_WAIT_TERMINATION = 10;
 
+    /**
+     * Interval between progress reports in milliseconds.
+     */
+    private static final int PROGRESS_INTERVAL = 500;
+
+    /**
+     * Initial capacity of queue of files.
+     */
+    private static final int QUEUE_CAPACITY = 11;
+
+    /**
+     * Interval between checks of links claimed by other processes in milliseconds.
+     */
+    private static final int SHARD_POLL_INTERVAL = 1000;
+
     /**
      * String to create range GET-request.
      */
     private static final String RANGE_BYTES_STRING = "bytes=";
 
+    /**
+     * Response code of web server that has too many requests.
+     */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Number of times request that web server refuses with 429 or 503 is repeated.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * Delay before the next attempt if web server does not send Retry-After, in milliseconds.
+     */
+    private static final int RETRY_DELAY = 1000;
+
+    /**
+     * Maximum delay before the next attempt, in milliseconds.
+     */
+    private static final int MAX_RETRY_DELAY = 10000;
+
     /**
      * Logger to log messages.
      */
@@ -120,81 +425,144 @@ public class DownloadManagerImpl implements DownloadManager {
      * @param links Full path to file containing download links.
      */
     public DownloadManagerImpl(int nThreads, long speedLimit, String outFolder, String links) {
+        this(nThreads, speedLimit, outFolder, links, DownloadOrder.MANIFEST);
+    }
+
+    /**
+     * Constructor for manager that is used only through submit().
+     *
+     * @param nThreads Number of downloading threads.
+     * @param speedLimit Download speed limit.
+     */
+    public DownloadManagerImpl(int nThreads, long speedLimit) {
+        this(nThreads, speedLimit, null, null, DownloadOrder.MANIFEST);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nThreads Number of downloading threads.
+     * @param speedLimit Download speed limit.
+     * @param outFolder Folder to download files to, may be null if startDownload() is not used.
+     * @param links Full path to file containing download links, may be null if startDownload() is not used.
+     * @param order Order of links of the same priority class.
+     */
+    public DownloadManagerImpl(int nThreads, long speedLimit, String outFolder, String links, Comparator<DownloadTask> order) {
         Assert.isTrue(nThreads > 0, "Thread number must be positive value");
         Assert.isTrue(speedLimit >= 0, "Download speed limit must be positive value");
-        Assert.notNull(outFolder, "Output folder must be not null");
-        Assert.notNull(links, "Links file must be not null");
+        Assert.isTrue((outFolder == null) == (links == null), "Output folder and links file must be specified together");
+        Assert.notNull(order, "Download order must be not null");
 
         threadsCount = nThreads;
         downloadSpeed = speedLimit;
         outputFolder = outFolder;
         downloadList = links;
-        totalBytesDownloaded = 0;
+        downloadOrder = order;
         currentThreadsAvailable = threadsCount;
 
-        outputFilesMap = new HashMap<SeekableByteChannel, Integer>(1);
+        outputFilesMap = new HashMap<BlockWriter, Integer>(1);
+        outputTasksMap = new HashMap<BlockWriter, DownloadTask>(1);
         resourcesMap = new HashMap<String, String>(1);
         copyResourcesMap = new HashMap<String, Set<String>>();
 
+        // higher priority first, then download order, then order of lines in file or of submissions
+        queue = new PriorityBlockingQueue<DownloadTask>(QUEUE_CAPACITY, new Comparator<DownloadTask>() {
+            public int compare(DownloadTask a, DownloadTask b) {
+                int res = a.getPriority().compareTo(b.getPriority());
+                if (res == 0) {
+                    res = downloadOrder.compare(a, b);
+                }
+                if (res == 0) {
+                    res = Long.compare(a.getLineNumber(), b.getLineNumber());
+                }
+                return res;
+            }
+        });
+        pendingTasks = new HashSet<DownloadTask>();
+        progressListeners = new CopyOnWriteArrayList<ProgressListener>();
+        reportedBytes = new ConcurrentHashMap<DownloadTask, Long>();
+        hostConnections = new HashMap<String, Integer>();
+        parkedTasks = new HashMap<String, Queue<DownloadTask>>();
+        waitingBlocks = new TreeSet<Block>(new Comparator<Block>() {
+            public int compare(Block a, Block b) {
+                int res = (a.task == b.task) ? 0 : queue.comparator().compare(a.task, b.task);
+                return (res != 0) ? res : Long.compare(a.sequence, b.sequence);
+            }
+        });
+        blockCounter = new AtomicLong();
+        blockWindows = new HashMap<BlockWriter, BlockWindow>();
+        hostBytes = new ConcurrentHashMap<String, AtomicLong>();
+        extractions = new ConcurrentHashMap<DownloadTask, CompletableFuture<Void>>();
+        submissionCounter = new AtomicLong();
+        durability = Durability.BATCH;
+
         if (downloadSpeed > 0) {
-            tokenBucket = new TokenBucketImpl(downloadSpeed);
+            tokenBucket = new PriorityTokenBucket(downloadSpeed);
         }
     }
 
     /**
-     * Starts download process.
+     * Makes startDownload() share links with other processes. Each link is downloaded
+     * by the process that claims it, the rest wait for it and copy duplicates.
+     *
+     * @param coordinator Coordinator of processes, null to download all links in this process.
      */
-    public final void startDownload() {
-        StopWatch watcher = new StopWatch();
-        watcher.start();
+    public void setShardCoordinator(ShardCoordinator coordinator) {
+        shardCoordinator = coordinator;
+    }
 
-        Thread t = null;
-        if (downloadSpeed > 0) {
-            t = new Thread(tokenBucket);
-            t.start();
-        }
+    /**
+     * Makes number of connections adapt to every host, threadsCount becomes the upper bound.
+     *
+     * @param controller Controller of connections per host, null to let every host use all threads.
+     */
+    public void setConnectionController(ConnectionController controller) {
+        connectionController = controller;
+    }
 
-        executorService = Executors.newFixedThreadPool(threadsCount);
+    /**
+     * Sets what is done to make completed files survive a crash, BATCH by default.
+     * Must be called before the first file is submitted.
+     *
+     * @param level Durability of completed files.
+     */
+    public synchronized void setDurability(Durability level) {
+        Assert.notNull(level, "Durability must be not null");
+        Assert.state(!started, "Durability must be set before downloading is started");
+        durability = level;
+    }
 
-        BufferedReader br = null;
-        String sCurrentLine;
-        try {
-            br = new BufferedReader(new FileReader(downloadList));
-            while ((sCurrentLine = br.readLine()) != null) {
-                String [] list = sCurrentLine.split(" ");
-                if (list.length < 2) {
-                    LOGGER.error("Too few tokens in line: {}", sCurrentLine);
-                    continue;
-                }
-                String address = list[0];
-                String fileToSave = list[1];
+    /**
+     * Downloads all links from file with links and waits for them to finish.
+     * Threads stay alive, call shutdown() to stop them.
+     */
+    public final void startDownload() {
+        Assert.state(downloadList != null, "File with links is not specified");
 
-                if (!resourceRequiresDownloading(address, fileToSave)) {
-                    continue;
-                }
+        StopWatch watcher = new StopWatch();
+        watcher.start();
 
-                downloadResourceToFile(address, fileToSave);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (br != null) {
-                    br.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+        resourcesMap.clear();
+        List<DownloadTask> tasks = readDownloadList();
+
+        // submit in queue order, so that dispatcher never starts a file before a better one is submitted
+        Collections.sort(tasks, queue.comparator());
+        if (shardCoordinator == null) {
+            for (DownloadTask task : tasks) {
+                submit(task);
             }
+        } else {
+            tasks = downloadShard(tasks);
         }
 
-        completeAllDownloads(executorService);
-
-        if (t != null) {
-            LOGGER.debug("Trying to shutdown TokenBucket...");
-            tokenBucket.shutdown();
-            LOGGER.debug("TokenBucket is now switched off");
+        long totalBytesDownloaded = 0;
+        for (DownloadTask task : tasks) {
             try {
-                t.join();
+                totalBytesDownloaded += task.getFuture().get().getBytesDownloaded();
+            } catch (ExecutionException e) {
+                LOGGER.error("{} -> {} failed: {}", new Object[] {task.getAddress(), task.getTarget(), e.getCause().toString()});
+            } catch (CancellationException e) {
+                LOGGER.error("{} -> {} cancelled", task.getAddress(), task.getTarget());
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
@@ -213,151 +581,1062 @@ public class DownloadManagerImpl implements DownloadManager {
         LOGGER.info("Download complete");
         LOGGER.info("Work time: {}:{} (min:sec)", minutes, seconds);
         LOGGER.info("Totally downloaded: {}  bytes", totalBytesDownloaded);
-        LOGGER.info("Average download speed: {} bytes/sec", totalBytesDownloaded / (totalTime / millisecondsInSecond));
+        LOGGER.info("Average download speed: {} bytes/sec", totalBytesDownloaded * millisecondsInSecond / Math.max(totalTime, 1));
     }
 
-    private void completeAllDownloads(ExecutorService execService) {
-        execService.shutdown();
-        try {
-            boolean terminated;
-            do {
-                terminated = execService.awaitTermination(TIME_TO_WAIT_TERMINATION, TimeUnit.MINUTES);
-            } while(!terminated);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        LOGGER.debug("All download tasks completed");
+    @Override
+    public CompletableFuture<DownloadResult> submit(String address, Path target, Priority priority) {
+        return submit(new DownloadTask(address, target, priority, submissionCounter.incrementAndGet()));
     }
 
-    private void createDownloadTasks(String address, int blocksCount, long blockSize, boolean supportPartialContent, FileChannel outChannel) {
-        long currentBlockStart = 0;
-        long blockEnd = 0;
-
-        try {
-            for (int k = 0; k < blocksCount; k++) {
-                URL website = new URL(address);
-                HttpURLConnection downloadConnection = (HttpURLConnection) website.openConnection();
-                downloadConnection.setRequestMethod(HttpGet.METHOD_NAME);
-
-                if (supportPartialContent) {
-                    blockEnd = currentBlockStart + blockSize - 1;
-                    if (k == blocksCount - 1) {
-                        downloadConnection.setRequestProperty(HttpHeaders.RANGE, RANGE_BYTES_STRING + currentBlockStart + "-");
-                    } else {
-                        downloadConnection.setRequestProperty(HttpHeaders.RANGE, RANGE_BYTES_STRING + currentBlockStart + "-" + blockEnd);
-                    }
-                }
+    @Override
+    public CompletableFuture<DownloadResult> submit(String address, WritableByteChannel sink, Priority priority) {
+        return submit(new DownloadTask(address, sink, priority, submissionCounter.incrementAndGet()));
+    }
 
-                downloadConnection.connect();
+    @Override
+    public CompletableFuture<DownloadResult> submit(final DownloadTask task) {
+        Assert.notNull(task, "Task must be not null");
+        Assert.state(!shutdown, "Download manager is shut down");
 
-                // responses inside range 2XX (success) are ok for us
-                if (downloadConnection.getResponseCode() / 100 != 2) {
-                    LOGGER.error("Unsuccessful response code: {}", downloadConnection.getResponseCode());
-                    continue;
-                }
-                int contentLength = downloadConnection.getContentLength();
-                if (contentLength < 1) {
-                    LOGGER.error("Can not get content");
-                    continue;
-                }
+        startThreads();
 
-                InputStream is = downloadConnection.getInputStream();
-                ReadableByteChannel rbc = Channels.newChannel(is);
-                ReadableByteChannel readChannel = (downloadSpeed > 0) ? new LimitedByteChannel(rbc, tokenBucket) : rbc;
-
-                synchronized (this) {
-                    currentThreadsAvailable--;
-                    LOGGER.debug("Create task. Current threads available = {}", currentThreadsAvailable);
-
-                    // create download task
-                    executorService.execute(new Downloader(readChannel, outChannel, currentBlockStart, DOWNLOAD_BUFFER_SIZE,
-                            new ActionCallback() {
-                                public void perform(FileChannel out, long bytesDownloaded) {
-                                    downloadComplete(out, bytesDownloaded);
-                                }
-                            }
-                    ));
-
-                    if (currentThreadsAvailable == 0) {
-                        try {
-                            this.wait();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+        synchronized (pendingTasks) {
+            pendingTasks.add(task);
+        }
 
-                if (supportPartialContent) {
-                    currentBlockStart = blockEnd + 1;
+        // file cancelled while waiting in queue is finished right away
+        task.getFuture().whenComplete(new BiConsumer<DownloadResult, Throwable>() {
+            public void accept(DownloadResult result, Throwable error) {
+                if (task.getFuture().isCancelled() && queue.remove(task)) {
+                    finishTask(task, false);
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        });
+
+        queue.add(task);
+        return task.getFuture();
     }
 
+    @Override
+    public void addProgressListener(ProgressListener listener) {
+        Assert.notNull(listener, "Listener must be not null");
+        progressListeners.add(listener);
+    }
 
-    private void downloadResourceToFile(String address, String fileToSave) {
-        try {
-            // check if web server supports partial download
-            URL website = new URL(address);
-            HttpURLConnection checkConnection = (HttpURLConnection) website.openConnection();
-            checkConnection.setRequestMethod(HttpHead.METHOD_NAME);
-            checkConnection.setRequestProperty(HttpHeaders.RANGE, RANGE_BYTES_STRING + "0-");
+    @Override
+    public void removeProgressListener(ProgressListener listener) {
+        progressListeners.remove(listener);
+    }
 
-            boolean supportPartialContent = (checkConnection.getResponseCode() == HttpStatus.SC_PARTIAL_CONTENT);
-            long contentSize = checkConnection.getContentLengthLong();
+    @Override
+    public void shutdown() {
+        shutdown = true;
 
-            LOGGER.info("{} -> {}", address, fileToSave);
-            LOGGER.debug("Response Code: {}", checkConnection.getResponseCode());
-            LOGGER.debug("Partial content retrieval support: {}", supportPartialContent);
-            LOGGER.debug("Content-Length: {}", contentSize);
-            checkConnection.disconnect();
+        synchronized (pendingTasks) {
+            while (!pendingTasks.isEmpty()) {
+                try {
+                    pendingTasks.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
 
-            // if entire file size is smaller than buffer_size, then download it in one thread
-            if (contentSize <= DOWNLOAD_BUFFER_SIZE) {
-                supportPartialContent = false;
+        synchronized (this) {
+            if (!started) {
+                return;
             }
+        }
 
-            int blocksCount = 1;    // if partial content is not supported
-            long blockSize = 0;
+        dispatcherThread.interrupt();
+        completeAllDownloads(executorService);
+        progressService.shutdownNow();
+        extractorService.shutdown();
 
-            if (supportPartialContent) {
-                blocksCount = threadsCount;
-                blockSize = (int) contentSize / blocksCount + 1;
+        fileCommitter.shutdown();
+        if (fileCommitterThread != null) {
+            try {
+                fileCommitterThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
 
-                if (blockSize < DOWNLOAD_BUFFER_SIZE) {
-                    blockSize = DOWNLOAD_BUFFER_SIZE;
+        if (connectionController != null) {
+            try {
+                connectionController.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-                    if (contentSize % blockSize > 0) {
-                        blocksCount = (int) (contentSize / blockSize) + 1;
-                    } else {
-                        blocksCount = (int) (contentSize / blockSize);
-                    }
-                }
+        if (tokenBucketThread != null) {
+            LOGGER.debug("Trying to shutdown TokenBucket...");
+            tokenBucket.shutdown();
+            LOGGER.debug("TokenBucket is now switched off");
+            try {
+                tokenBucketThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-            RandomAccessFile aFile = new RandomAccessFile(outputFolder + File.separator + fileToSave, "rw");
-            FileChannel outChannel = aFile.getChannel();
+    private synchronized void startThreads() {
+        if (started) {
+            return;
+        }
+        started = true;
 
-            // save FileChannel to close it after all downloads complete
-            outputFilesMap.put(outChannel, blocksCount);
+        if (downloadSpeed > 0) {
+            tokenBucketThread = new Thread(tokenBucket, "token-bucket");
+            tokenBucketThread.start();
+        }
 
-            createDownloadTasks(address, blocksCount, blockSize, supportPartialContent, outChannel);
+        executorService = Executors.newFixedThreadPool(threadsCount);
+        extractorService = Executors.newCachedThreadPool();
 
-        } catch (IOException e) {
+        fileCommitter = new FileCommitter(durability);
+        if (durability == Durability.BATCH) {
+            fileCommitterThread = new Thread(fileCommitter, "file-committer");
+            fileCommitterThread.start();
+        }
+
+        dispatcherThread = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "download-dispatcher");
+        dispatcherThread.start();
+
+        progressService = Executors.newSingleThreadScheduledExecutor();
+        progressService.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reportProgress();
+            }
+        }, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Downloads links claimed by this process and waits till links claimed by other
+     * processes are finished. Claims of dead processes are taken over on the way.
+     *
+     * @param tasks All links in queue order.
+     * @return Links downloaded by this process.
+     */
+    private List<DownloadTask> downloadShard(List<DownloadTask> tasks) {
+        Thread heartbeatThread = new Thread(shardCoordinator, "shard-heartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+
+        List<DownloadTask> claimed = new ArrayList<DownloadTask>();
+        List<DownloadTask> inProgress = new ArrayList<DownloadTask>();
+        List<DownloadTask> waiting = new LinkedList<DownloadTask>(tasks);
+
+        while (!waiting.isEmpty() || !inProgress.isEmpty()) {
+            Iterator<DownloadTask> it = inProgress.iterator();
+            while (it.hasNext()) {
+                DownloadTask task = it.next();
+                if (task.getFuture().isDone()) {
+                    it.remove();
+                    finishShardTask(task);
+                }
+            }
+
+            // claim no more files than can be downloaded at once, so that other processes get their share
+            it = waiting.iterator();
+            while (it.hasNext() && inProgress.size() < threadsCount) {
+                DownloadTask task = it.next();
+                try {
+                    if (shardCoordinator.isFinished(task.getAddress())) {
+                        it.remove();
+                        copyDownloadedByOther(task);
+                    } else if (shardCoordinator.tryClaim(task.getAddress())) {
+                        it.remove();
+                        // worker that takes over the link later writes a temporary file of its own
+                        task.setTempSuffix(tempSuffix());
+                        submit(task);
+                        inProgress.add(task);
+                        claimed.add(task);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            waitForShardProgress(inProgress);
+        }
+
+        shardCoordinator.shutdown();
+        return claimed;
+    }
+
+    private void waitForShardProgress(List<DownloadTask> inProgress) {
+        try {
+            if (inProgress.isEmpty()) {
+                Thread.sleep(SHARD_POLL_INTERVAL);
+                return;
+            }
+
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[inProgress.size()];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = inProgress.get(i).getFuture();
+            }
+            CompletableFuture.anyOf(futures).get(SHARD_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // time to look at links claimed by other processes
+        } catch (ExecutionException e) {
+            // reported by finishShardTask
+        } catch (CancellationException e) {
+            // reported by finishShardTask
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void finishShardTask(DownloadTask task) {
+        String address = task.getAddress();
+        try {
+            if (task.getFuture().isCompletedExceptionally()) {
+                Throwable error = task.getError();
+                shardCoordinator.failed(address, (error != null) ? error.toString() : "cancelled");
+                return;
+            }
+
+            if (!shardCoordinator.isOwned(address)) {
+                // lease expired while downloading, the new owner downloads to its own temporary file
+                // and both renames put a complete file under target name
+                LOGGER.warn("{} was taken over by another worker while downloading", address);
+            }
+            // duplicates must exist before other processes see link as downloaded
+            copyDuplicatesOf(task.getTarget().toString());
+            shardCoordinator.downloaded(address, task.getTarget().toString());
+        } catch (IOException e) {
+            e.printStackTrace();
+            shardCoordinator.release(address);
+        }
+    }
+
+    private void copyDownloadedByOther(DownloadTask task) throws IOException {
+        String target = task.getTarget().toString();
+        String downloadedPath = shardCoordinator.getDownloadedPath(task.getAddress());
+        if (downloadedPath == null) {
+            LOGGER.error("{} -> {} failed in another worker", task.getAddress(), target);
+            copyResourcesMap.remove(target);
+            return;
+        }
+
+        if (downloadedPath.equals(target)) {
+            // the same line of the same file, its duplicates are copied by the process that downloaded it
+            LOGGER.debug("{} is downloaded by another worker", task.getAddress());
+            copyResourcesMap.remove(target);
+            return;
+        }
+
+        // the same link in another file with links
+        LOGGER.info("{} -> {} is copied from {}", new Object[] {task.getAddress(), target, downloadedPath});
+        copyFile(FileSystems.getDefault().getPath(downloadedPath), task.getTarget());
+        copyDuplicatesOf(target);
+    }
+
+    private void dispatch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final DownloadTask task;
+            try {
+                waitForFreeThread();
+                task = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (task.isStopped()) {
+                finishTask(task, false);
+                continue;
+            }
+            // requests are made by downloading threads, so a slow or refusing web server never holds up dispatcher
+            if (acquireConnectionOrPark(task)) {
+                executorService.execute(new Runnable() {
+                    public void run() {
+                        downloadResourceToFile(task);
+                    }
+                });
+            }
+        }
+        LOGGER.debug("Dispatcher is stopped");
+    }
+
+    private void reportProgress() {
+        // limit of host may grow without any connection released, so waiting files and blocks are checked from time to time
+        synchronized (this) {
+            startWaitingBlocks();
+            for (Queue<DownloadTask> parked : parkedTasks.values()) {
+                queue.addAll(parked);
+            }
+            parkedTasks.clear();
+        }
+
+        if (progressListeners.isEmpty() && connectionController == null) {
+            return;
+        }
+
+        List<DownloadTask> active;
+        Map<String, Integer> connections;
+        synchronized (this) {
+            active = new ArrayList<DownloadTask>(outputTasksMap.values());
+            connections = new HashMap<String, Integer>(hostConnections);
+        }
+
+        for (DownloadTask task : active) {
+            long bytes = task.getBytesDownloaded();
+            Long reported = reportedBytes.put(task, bytes);
+            if (reported != null && reported == bytes) {
+                continue;
+            }
+            addHostBytes(task, bytes - ((reported != null) ? reported : 0));
+            for (ProgressListener listener : progressListeners) {
+                listener.progress(task);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (connectionController != null && lastReportTime > 0) {
+            for (Map.Entry<String, AtomicLong> entry : hostBytes.entrySet()) {
+                Integer open = connections.get(entry.getKey());
+                connectionController.transferred(entry.getKey(), entry.getValue().getAndSet(0), now - lastReportTime,
+                        (open != null) ? open : 0);
+            }
+        }
+        lastReportTime = now;
+    }
+
+    private void addHostBytes(DownloadTask task, long bytes) {
+        if (connectionController == null) {
+            return;
+        }
+        String host = hostOf(task.getAddress());
+        AtomicLong counter = hostBytes.get(host);
+        if (counter == null) {
+            hostBytes.putIfAbsent(host, new AtomicLong());
+            counter = hostBytes.get(host);
+        }
+        counter.addAndGet(bytes);
+    }
+
+    /**
+     * @param host host and port of link.
+     * @return number of connections that may be open to host at once.
+     */
+    private int connectionLimit(String host) {
+        if (connectionController == null) {
+            return threadsCount;
+        }
+        return Math.max(1, Math.min(connectionController.getConnections(host), threadsCount));
+    }
+
+    /**
+     * Waits till there is a free downloading thread. Nothing can start without it,
+     * so dispatcher does not take files from queue meanwhile.
+     */
+    private synchronized void waitForFreeThread() throws InterruptedException {
+        while (currentThreadsAvailable == 0) {
+            this.wait();
+        }
+    }
+
+    /**
+     * Takes a free downloading thread and a free connection to host of file. File whose host
+     * has all its connections open is parked till one of them is released, so that files of
+     * other hosts go ahead of it.
+     *
+     * @param task File taken from queue.
+     * @return true if connection is taken, false if file is parked or put back to queue.
+     */
+    private synchronized boolean acquireConnectionOrPark(DownloadTask task) {
+        String host = hostOf(task.getAddress());
+        if (tryAcquireConnection(host)) {
+            return true;
+        }
+
+        if (currentThreadsAvailable == 0) {
+            // thread is taken by a block since dispatcher saw it free
+            queue.add(task);
+            return false;
+        }
+        Queue<DownloadTask> parked = parkedTasks.get(host);
+        if (parked == null) {
+            parked = new PriorityQueue<DownloadTask>(QUEUE_CAPACITY, queue.comparator());
+            parkedTasks.put(host, parked);
+        }
+        parked.add(task);
+        return false;
+    }
+
+    /**
+     * Takes a free downloading thread and a free connection to host, if there are any.
+     *
+     * @param host host and port of link.
+     * @return true if connection is taken.
+     */
+    private synchronized boolean tryAcquireConnection(String host) {
+        Integer open = hostConnections.get(host);
+        if (currentThreadsAvailable == 0 || (open != null && open >= connectionLimit(host))) {
+            return false;
+        }
+
+        currentThreadsAvailable--;
+        hostConnections.put(host, (open != null) ? open + 1 : 1);
+        LOGGER.debug("Create task. Current threads available = {}", currentThreadsAvailable);
+        return true;
+    }
+
+    /**
+     * Releases downloading thread and connection to host taken by tryAcquireConnection(),
+     * and passes them to a waiting block or to the best file parked for the host.
+     *
+     * @param host host and port of link.
+     */
+    private synchronized void releaseConnection(String host) {
+        Integer open = hostConnections.get(host);
+        if (open == null || open <= 1) {
+            hostConnections.remove(host);
+        } else {
+            hostConnections.put(host, open - 1);
+        }
+
+        currentThreadsAvailable++;
+        LOGGER.debug("Finish task. Current threads available = {}", currentThreadsAvailable);
+
+        // blocks of started files go first, so that files are finished in the order they were started
+        startWaitingBlocks();
+        Queue<DownloadTask> parked = parkedTasks.get(host);
+        if (parked != null) {
+            queue.add(parked.poll());
+            if (parked.isEmpty()) {
+                parkedTasks.remove(host);
+            }
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * Starts block as soon as there is a connection to its host.
+     *
+     * @param block Block that makes its own request.
+     */
+    private synchronized void startBlock(Block block) {
+        if (tryAcquireConnection(block.host)) {
+            executorService.execute(block);
+        } else {
+            waitingBlocks.add(block);
+        }
+    }
+
+    /**
+     * Starts waiting blocks whose hosts have free connections.
+     */
+    private synchronized void startWaitingBlocks() {
+        Iterator<Block> it = waitingBlocks.iterator();
+        while (it.hasNext() && currentThreadsAvailable > 0) {
+            Block block = it.next();
+            if (tryAcquireConnection(block.host)) {
+                it.remove();
+                executorService.execute(block);
+            }
+        }
+    }
+
+    private List<DownloadTask> readDownloadList() {
+        List<DownloadTask> tasks = new ArrayList<DownloadTask>();
+
+        BufferedReader br = null;
+        String sCurrentLine;
+        int lineNumber = 0;
+        try {
+            br = new BufferedReader(new FileReader(downloadList));
+            while ((sCurrentLine = br.readLine()) != null) {
+                lineNumber++;
+                DownloadTask task;
+                try {
+                    task = DownloadTask.fromLine(sCurrentLine, outputFolder, lineNumber);
+                } catch (IllegalArgumentException e) {
+                    LOGGER.error(e.getMessage());
+                    continue;
+                }
+
+                if (!resourceRequiresDownloading(task)) {
+                    continue;
+                }
+
+                // sizes are required to order links by anything but lines order
+                if (downloadOrder != DownloadOrder.MANIFEST) {
+                    try {
+                        probeResource(task);
+                    } catch (IOException e) {
+                        // size stays unknown, so the link goes last; its download reports the error if it persists
+                        LOGGER.error("Probe of {} failed: {}", task.getAddress(), e.toString());
+                    }
+                }
+
+                tasks.add(task);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (br != null) {
+                    br.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        return tasks;
+    }
+
+    private void completeAllDownloads(ExecutorService execService) {
+        execService.shutdown();
+        try {
+            boolean terminated;
+            do {
+                terminated = execService.awaitTermination(TIME_TO_WAIT_TERMINATION, TimeUnit.MINUTES);
+            } while(!terminated);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        LOGGER.debug("All download tasks completed");
+    }
+
+    /**
+     * Starts blocks of file: the first one reads response to the first request on the calling
+     * thread, the rest make their own ranged requests as soon as there are connections to host.
+     * Blocks of resource written to channel are started by sliding window over reorder buffer.
+     */
+    private void createDownloadTasks(DownloadTask task, HttpURLConnection firstConnection, int blocksCount, long blockSize,
+                                     boolean supportPartialContent, TokenBucket bucket, BlockWriter outChannel) {
+        String host = hostOf(task.getAddress());
+        List<Block> blocks = new ArrayList<Block>();
+        long currentBlockStart = blockSize;
+        for (int k = 1; k < blocksCount; k++) {
+            boolean lastBlock = (k == blocksCount - 1);
+            long blockEnd = currentBlockStart + blockSize - 1;
+            String range = RANGE_BYTES_STRING + currentBlockStart + "-" + (lastBlock ? "" : String.valueOf(blockEnd));
+            // the last block is read till the end of stream
+            blocks.add(new Block(task, host, outChannel, k, currentBlockStart, lastBlock ? -1 : blockSize, range, bucket));
+            currentBlockStart = blockEnd + 1;
+        }
+
+        if (task.getSink() != null && !blocks.isEmpty()) {
+            // block that starts beyond reorder buffer would hold its connection idle till earlier blocks catch up
+            BlockWindow window = new BlockWindow(task, blocks, (int) Math.max(1, STREAM_BUFFER_SIZE / blockSize));
+            synchronized (this) {
+                blockWindows.put(outChannel, window);
+                startWindowBlocks(outChannel, window);
+            }
+        } else {
+            for (Block block : blocks) {
+                if (task.isStopped()) {
+                    // file is cancelled or failed, do not start the rest of blocks
+                    releaseChannel(outChannel);
+                } else {
+                    startBlock(block);
+                }
+            }
+        }
+
+        if (task.isStopped()) {
+            firstConnection.disconnect();
+            blockEnded(outChannel, 0, true);
+            releaseChannel(outChannel);
+            releaseConnection(host);
+            return;
+        }
+        // response to the first request is used as the first block, resources of unknown length are read till the end
+        long length = (supportPartialContent && blocksCount > 1) ? blockSize : -1;
+        try {
+            runDownloader(task, firstConnection, outChannel, 0, 0, length, bucket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            task.setError(e);
+            blockEnded(outChannel, 0, true);
+            releaseChannel(outChannel);
+            releaseConnection(host);
+        }
+    }
+
+    /**
+     * Registers that block is over and starts the following blocks of window that fit in reorder buffer now.
+     * Blocks that are not started yet are dropped if block failed or file is stopped.
+     *
+     * @param outChannel Output of file.
+     * @param index Number of block in file.
+     * @param failed Whether block failed or was not started.
+     */
+    private void blockEnded(BlockWriter outChannel, int index, boolean failed) {
+        int dropped = 0;
+        synchronized (this) {
+            BlockWindow window = blockWindows.get(outChannel);
+            if (window == null) {
+                return;
+            }
+
+            window.running.remove(index);
+            if (failed || window.task.isStopped()) {
+                dropped = window.notStarted.size();
+                window.notStarted.clear();
+            } else {
+                startWindowBlocks(outChannel, window);
+            }
+            if (window.running.isEmpty() && window.notStarted.isEmpty()) {
+                blockWindows.remove(outChannel);
+            }
+        }
+
+        for (int i = 0; i < dropped; i++) {
+            releaseChannel(outChannel);
+        }
+    }
+
+    /**
+     * Starts blocks that end no further than reorder buffer capacity from the earliest running block.
+     * Bytes before the earliest running block are written, so started blocks never wait for room.
+     */
+    private synchronized void startWindowBlocks(BlockWriter outChannel, BlockWindow window) {
+        while (!window.notStarted.isEmpty()) {
+            Block next = window.notStarted.peekFirst();
+            int earliest = window.running.isEmpty() ? next.index : window.running.first();
+            if (next.index >= earliest + window.size) {
+                break;
+            }
+            window.notStarted.pollFirst();
+            window.running.add(next.index);
+            startBlock(next);
+        }
+    }
+
+    /**
+     * Makes ranged request of block and downloads it on the calling thread, that holds connection to host.
+     *
+     * @param block Block to download.
+     */
+    private void downloadBlock(Block block) {
+        DownloadTask task = block.task;
+        try {
+            if (task.isStopped()) {
+                blockEnded(block.outChannel, block.index, true);
+                releaseChannel(block.outChannel);
+                releaseConnection(block.host);
+                return;
+            }
+
+            HttpURLConnection downloadConnection = openConnectionWithRetry(task, block.range);
+            // anything but partial content would be written at wrong offset
+            if (downloadConnection.getResponseCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                LOGGER.error("Unsuccessful response code for block {}: {}", block.index, downloadConnection.getResponseCode());
+                task.setError(new IOException("Unsuccessful response code for block " + block.index + ": "
+                        + downloadConnection.getResponseCode()));
+                downloadConnection.disconnect();
+                blockEnded(block.outChannel, block.index, true);
+                releaseChannel(block.outChannel);
+                releaseConnection(block.host);
+                return;
+            }
+            runDownloader(task, downloadConnection, block.outChannel, block.index, block.start, block.length,
+                    block.bucket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            task.setError(e);
+            blockEnded(block.outChannel, block.index, true);
+            releaseChannel(block.outChannel);
+            releaseConnection(block.host);
+        }
+    }
+
+    /**
+     * Makes ranged request of block that is fetched into memory on the calling thread, that holds connection to host.
+     *
+     * @param block Block to fetch.
+     */
+    private void fetchBlock(Block block) {
+        DownloadTask task = block.task;
+        try {
+            if (task.isStopped()) {
+                throw new IOException("Download of " + task.getAddress() + " is stopped");
+            }
+
+            HttpURLConnection connection = openConnectionWithRetry(task, block.range);
+            try {
+                if (connection.getResponseCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                    block.fetched.complete(null);
+                    return;
+                }
+                ByteBuffer bytes = ByteBuffer.allocate((int) block.length);
+                ReadableByteChannel rbc = Channels.newChannel(connection.getInputStream());
+                // range is read at the speed of its priority class like the blocks of files
+                ReadableByteChannel readChannel = (downloadSpeed > 0) ? new LimitedByteChannel(rbc, block.bucket) : rbc;
+                try {
+                    while (bytes.hasRemaining()) {
+                        if (readChannel.read(bytes) < 0) {
+                            throw new EOFException("Range " + block.range + " of " + task.getAddress() + " is cut");
+                        }
+                    }
+                } finally {
+                    readChannel.close();
+                }
+                block.fetched.complete(bytes.array());
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            block.fetched.completeExceptionally(e);
+        } finally {
+            releaseConnection(block.host);
+        }
+    }
+
+    /**
+     * Fetches range of resource into memory. The request waits for a connection to host like blocks do.
+     *
+     * @param task Task whose resource is fetched.
+     * @param start Offset of the first byte.
+     * @param length Number of bytes.
+     * @return bytes of range or null if web server does not send it as partial content.
+     * @throws IOException if request fails or download is stopped.
+     */
+    private byte[] fetchRange(DownloadTask task, long start, int length) throws IOException {
+        TokenBucket bucket = (downloadSpeed > 0) ? tokenBucket.getShare(task.getPriority()) : null;
+        Block block = new Block(task, start, length, bucket);
+        startBlock(block);
+        try {
+            while (true) {
+                try {
+                    return block.fetched.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // block that is still waiting for connection finds out the same when it starts
+                    if (task.isStopped()) {
+                        throw new IOException("Download of " + task.getAddress() + " is stopped");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for range of " + task.getAddress());
+        }
+    }
+
+    /**
+     * Reads response into output on the calling thread, connection is released in downloadComplete.
+     */
+    private void runDownloader(DownloadTask task, HttpURLConnection connection, BlockWriter outChannel, final int index,
+                               long start, long length, TokenBucket bucket) throws IOException {
+        InputStream is = connection.getInputStream();
+        ReadableByteChannel rbc = Channels.newChannel(is);
+        ReadableByteChannel readChannel = (downloadSpeed > 0) ? new LimitedByteChannel(rbc, bucket) : rbc;
+
+        new Downloader(readChannel, outChannel, start, length, DOWNLOAD_BUFFER_SIZE, task,
+                new ActionCallback() {
+                    public void perform(BlockWriter out, long bytesDownloaded, IOException error) {
+                        // blocks that window lets in now queue for connection before this one is released
+                        blockEnded(out, index, error != null);
+                        downloadComplete(out, bytesDownloaded, error);
+                    }
+                }
+        ).run();
+    }
+
+    private HttpURLConnection openConnection(String address, String range) throws IOException {
+        URL website = new URL(address);
+        HttpURLConnection connection = (HttpURLConnection) website.openConnection();
+        connection.setRequestMethod(HttpGet.METHOD_NAME);
+        if (range != null) {
+            connection.setRequestProperty(HttpHeaders.RANGE, range);
+        }
+
+        // every caller reads response code right away, so the event covers time till response headers
+        ConnectEvent event = new ConnectEvent();
+        event.begin();
+        int status = 0;
+        try {
+            connection.connect();
+            status = connection.getResponseCode();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.url = address;
+                event.range = range;
+                event.status = status;
+                event.commit();
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Opens connection and repeats the request after a delay while web server refuses it with 429 or 503,
+     * up to MAX_RETRIES times. Every refusal is a congestion signal for connectionController.
+     * Called by downloading threads only, the delay holds connection to the host that asked for it.
+     *
+     * @return connection with the last response.
+     */
+    private HttpURLConnection openConnectionWithRetry(DownloadTask task, String range) throws IOException {
+        HttpURLConnection connection = openConnection(task.getAddress(), range);
+        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
+            int responseCode = connection.getResponseCode();
+            if (responseCode != SC_TOO_MANY_REQUESTS && responseCode != HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                break;
+            }
+
+            LOGGER.debug("Request is refused with {}, attempt {}", responseCode, attempt);
+            if (connectionController != null) {
+                connectionController.congested(hostOf(task.getAddress()));
+            }
+            long delay = retryDelay(connection.getHeaderField(HttpHeaders.RETRY_AFTER), attempt);
+            connection.disconnect();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting to repeat request");
+            }
+            connection = openConnection(task.getAddress(), range);
+        }
+        return connection;
+    }
+
+    /**
+     * @param retryAfter value of Retry-After header in seconds, may be null.
+     * @param attempt number of failed attempt.
+     * @return delay before the next attempt in milliseconds.
+     */
+    private static long retryDelay(String retryAfter, int attempt) {
+        long delay = (long) RETRY_DELAY * attempt;
+        if (retryAfter != null) {
+            try {
+                delay = Long.parseLong(retryAfter.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // HTTP date is not worth parsing for such a delay
+            }
+        }
+        return Math.min(delay, MAX_RETRY_DELAY);
+    }
+
+    /**
+     * @param address link.
+     * @return host and port of link, the link itself if it is malformed.
+     */
+    private static String hostOf(String address) {
+        try {
+            return new URL(address).getAuthority();
+        } catch (MalformedURLException e) {
+            return address;
+        }
+    }
+
+    /**
+     * Takes total size of resource from Content-Range header, for example "bytes 0-499/1234".
+     *
+     * @param contentRange value of Content-Range header, may be null.
+     * @return total size of resource or -1 if it is unknown.
+     */
+    static long parseTotalSize(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int k = contentRange.lastIndexOf('/');
+        if (k < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(k + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*" means that total size is unknown
+            return -1;
+        }
+    }
+
+    private void probeResource(DownloadTask task) throws IOException {
+        // check if web server supports partial download
+        ProbeEvent event = new ProbeEvent();
+        event.begin();
+        URL website = new URL(task.getAddress());
+        HttpURLConnection checkConnection = (HttpURLConnection) website.openConnection();
+        checkConnection.setRequestMethod(HttpHead.METHOD_NAME);
+        checkConnection.setRequestProperty(HttpHeaders.RANGE, RANGE_BYTES_STRING + "0-");
+
+        boolean supportPartialContent = (checkConnection.getResponseCode() == HttpStatus.SC_PARTIAL_CONTENT);
+        long contentSize = checkConnection.getContentLengthLong();
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.url = task.getAddress();
+            event.status = checkConnection.getResponseCode();
+            event.contentSize = contentSize;
+            event.partialContent = supportPartialContent;
+            event.commit();
+        }
+
+        LOGGER.debug("Response Code: {}", checkConnection.getResponseCode());
+        LOGGER.debug("Partial content retrieval support: {}", supportPartialContent);
+        LOGGER.debug("Content-Length: {}", contentSize);
+        checkConnection.disconnect();
+
+        task.setProbeResult(contentSize, supportPartialContent);
+    }
+
+    /**
+     * Makes the first request of file and starts its blocks. Runs on downloading thread
+     * that holds connection to host taken by dispatcher.
+     *
+     * @param task File to download.
+     */
+    private void downloadResourceToFile(DownloadTask task) {
+        String address = task.getAddress();
+        String host = hostOf(address);
+        boolean holdsConnection = true;
+        try {
+            task.setStartTime(System.currentTimeMillis());
+
+            LOGGER.info("{} -> {} ({})", new Object[] {address, (task.getSink() != null) ? "stream" : task.getTarget(),
+                    task.getPriority()});
+
+            // ranged GET of the whole resource checks partial download support and becomes the first block,
+            // so there is no separate request just to ask web server about resource
+            HttpURLConnection firstConnection = openConnectionWithRetry(task, RANGE_BYTES_STRING + "0-");
+            if (firstConnection.getResponseCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // empty resource can not satisfy any range
+                firstConnection.disconnect();
+                firstConnection = openConnection(address, null);
+            }
+
+            // responses inside range 2XX (success) are ok for us
+            int responseCode = firstConnection.getResponseCode();
+            if (responseCode / 100 != 2) {
+                LOGGER.error("Unsuccessful response code: {}", responseCode);
+                firstConnection.disconnect();
+                releaseConnection(host);
+                task.setError(new IOException("Unsuccessful response code: " + responseCode));
+                finishTask(task, false);
+                return;
+            }
+
+            boolean supportPartialContent = (responseCode == HttpStatus.SC_PARTIAL_CONTENT);
+            long contentSize = supportPartialContent
+                    ? parseTotalSize(firstConnection.getHeaderField(HttpHeaders.CONTENT_RANGE))
+                    : firstConnection.getContentLengthLong();
+            task.setProbeResult(contentSize, supportPartialContent);
+
+            LOGGER.debug("Response Code: {}", responseCode);
+            LOGGER.debug("Partial content retrieval support: {}", supportPartialContent);
+            LOGGER.debug("Content size: {}", contentSize);
+
+            // if entire file size is smaller than buffer_size or unknown, then download it in one thread
+            if (contentSize <= DOWNLOAD_BUFFER_SIZE) {
+                supportPartialContent = false;
+            }
+
+            int blocksCount = 1;    // if partial content is not supported
+            long blockSize = 0;
+
+            if (supportPartialContent) {
+                // blocks beyond the limit of host wait for connections, so a limit raised later applies to this file too
+                blocksCount = threadsCount;
+                blockSize = contentSize / blocksCount + 1;
+
+                // blocks ahead of written bytes wait in reorder buffer, so all blocks in progress must fit in it
+                if (task.getSink() != null && blockSize * blocksCount > STREAM_BUFFER_SIZE) {
+                    blockSize = STREAM_BUFFER_SIZE / blocksCount;
+                }
+
+                if (blockSize < DOWNLOAD_BUFFER_SIZE) {
+                    blockSize = DOWNLOAD_BUFFER_SIZE;
+                }
+                if (contentSize % blockSize > 0) {
+                    blocksCount = (int) (contentSize / blockSize) + 1;
+                } else {
+                    blocksCount = (int) (contentSize / blockSize);
+                }
+            }
+
+            BlockWriter outChannel;
+            if (task.getSink() != null) {
+                outChannel = new StreamBlockWriter(task, task.getSink(), STREAM_BUFFER_SIZE);
+            } else {
+                // resource is downloaded under temporary name and renamed when it is complete
+                try {
+                    // temporary file belongs to this process only, leftover of an interrupted run is dropped
+                    RandomAccessFile aFile = new RandomAccessFile(task.getTempTarget().toFile(), "rw");
+                    aFile.setLength(0);
+                    outChannel = new FileBlockWriter(aFile.getChannel());
+                } catch (IOException e) {
+                    firstConnection.disconnect();
+                    throw e;
+                }
+            }
+
+            // save FileChannel to close it after all downloads complete
+            synchronized (this) {
+                outputFilesMap.put(outChannel, blocksCount);
+                outputTasksMap.put(outChannel, task);
+            }
+
+            if (task.isExtract()) {
+                startExtraction(task);
+            }
+
+            TokenBucket bucket = (downloadSpeed > 0) ? tokenBucket.getShare(task.getPriority()) : null;
+            holdsConnection = false;
+            createDownloadTasks(task, firstConnection, blocksCount, blockSize, supportPartialContent, bucket, outChannel);
+
+        } catch (IOException e) {
             e.printStackTrace();
+            if (holdsConnection) {
+                releaseConnection(host);
+            }
+            task.setError(e);
+            finishTask(task, false);
+        }
+    }
+
+    /**
+     * Starts extraction of archive that reads blocks as they are written.
+     *
+     * @param task Task whose temporary file is created and size is known if web server sent it.
+     */
+    private void startExtraction(final DownloadTask task) {
+        ArchiveExtractor.Format format = ArchiveExtractor.Format.of(task.getTarget().getFileName().toString());
+        if (format == null) {
+            LOGGER.error("{} is not a supported archive, it is not extracted", task.getTarget().getFileName());
+            return;
         }
+
+        ArchiveExtractor extractor = new ArchiveExtractor(task, format, new ArchiveExtractor.RangeFetcher() {
+            public byte[] fetch(DownloadTask archive, long start, int length) throws IOException {
+                return fetchRange(archive, start, length);
+            }
+        });
+        extractions.put(task, extractor.getFuture());
+        // broken archive stops download right away
+        extractor.getFuture().whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void result, Throwable error) {
+                if (error != null) {
+                    task.setError(error);
+                }
+            }
+        });
+        extractorService.execute(extractor);
     }
 
-    private boolean resourceRequiresDownloading(String address, String fileToSave) {
+    private boolean resourceRequiresDownloading(DownloadTask task) {
+        String address = task.getAddress();
         boolean requiresDownload;
         if (!resourcesMap.containsKey(address)) {
-            resourcesMap.put(address, fileToSave);
+            resourcesMap.put(address, task.getTarget().toString());
             requiresDownload = true;
         } else {
-            String src = outputFolder + File.separator + resourcesMap.get(address);
-            String dest = outputFolder + File.separator + fileToSave;
+            String src = resourcesMap.get(address);
+            String dest = task.getTarget().toString();
 
             if (!copyResourcesMap.containsKey(src)) {
                 Set<String> destsList = new HashSet<String>();
@@ -375,26 +1654,52 @@ public class DownloadManagerImpl implements DownloadManager {
 
     private void copyDuplicateLinks() {
         LOGGER.debug("Copying duplicate files...");
-        Iterator<Map.Entry<String, Set<String>>> it = copyResourcesMap.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Set<String>> pairs = (Map.Entry<String, Set<String>>) it.next();
+        for (String src : new ArrayList<String>(copyResourcesMap.keySet())) {
+            copyDuplicatesOf(src);
+        }
+        LOGGER.debug("Copying of duplicates completed");
+    }
 
-            String src = pairs.getKey();
-            Set<String> destsList = pairs.getValue();
+    /**
+     * Copies downloaded file to paths of duplicate links.
+     *
+     * @param src Path of downloaded file.
+     */
+    private void copyDuplicatesOf(String src) {
+        Set<String> destsList = copyResourcesMap.remove(src);
+        if (destsList == null) {
+            return;
+        }
 
-            for (String aDestsList : destsList) {
-                Path srcPath = FileSystems.getDefault().getPath(src);
-                Path dstPath = FileSystems.getDefault().getPath(aDestsList);
-                try {
-                    LOGGER.debug("Copy {} to {}", srcPath, dstPath);
-                    Files.copy(srcPath, dstPath, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        for (String aDestsList : destsList) {
+            Path srcPath = FileSystems.getDefault().getPath(src);
+            Path dstPath = FileSystems.getDefault().getPath(aDestsList);
+            try {
+                LOGGER.debug("Copy {} to {}", srcPath, dstPath);
+                copyFile(srcPath, dstPath);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            it.remove();
         }
-        LOGGER.debug("Copying of duplicates completed");
+    }
+
+    /**
+     * Copies file under temporary name and renames copy, so that partial copy is never seen under target name.
+     */
+    private void copyFile(Path src, Path dst) throws IOException {
+        Path temp = dst.resolveSibling(dst.getFileName() + tempSuffix());
+        Files.copy(src, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, dst, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return suffix of temporary files, unique for every process that shares links with others.
+     */
+    private String tempSuffix() {
+        if (shardCoordinator == null) {
+            return DownloadTask.PART_SUFFIX;
+        }
+        return DownloadTask.PART_SUFFIX + "." + shardCoordinator.getWorkerId();
     }
 
     /**
@@ -402,36 +1707,173 @@ public class DownloadManagerImpl implements DownloadManager {
      *
      * @param channel Channel to inspect for closing.
      * @param bytesDownloaded Bytes downloaded and written to channel.
+     * @param error Error that stopped downloading thread, null if block is downloaded.
      */
-    synchronized public void downloadComplete(SeekableByteChannel channel, long bytesDownloaded)
+    public void downloadComplete(BlockWriter channel, long bytesDownloaded, IOException error)
     {
         Assert.notNull(channel, "Channel reference must be not null");
         Assert.isTrue(bytesDownloaded >= 0, "Bytes downloaded can not be negative");
 
-        if (outputFilesMap.containsKey(channel)) {
-            Integer curVal = outputFilesMap.get(channel);
-            curVal--;
-            if (curVal == 0) {
-                outputFilesMap.remove(channel);
+        LOGGER.debug("I have downloaded {} bytes", bytesDownloaded);
+        DownloadTask task;
+        synchronized (this) {
+            task = outputTasksMap.get(channel);
+        }
+        if (error != null && task != null) {
+            // blocks of a stopped task fail on their own, that says nothing about the host
+            boolean stoppedBefore = task.isStopped();
+            task.setError(error);
+            if (connectionController != null && !stoppedBefore && isCongestion(error)) {
+                connectionController.congested(hostOf(task.getAddress()));
+            }
+        }
 
-                try {
-                    channel.close();
-                    LOGGER.debug("Channel closed");
-                } catch (IOException e) {
-                    e.printStackTrace();
+        // the last block commits file on this thread, flush of file must not hold connection to host
+        if (task != null) {
+            releaseConnection(hostOf(task.getAddress()));
+        }
+        releaseChannel(channel);
+    }
+
+    /**
+     * Tells whether error of block means that web server or network is overloaded: connection
+     * is reset or refused, or read times out. Responses 429 and 503 are reported where they come.
+     *
+     * @param error Error that stopped downloading thread.
+     * @return true if number of connections to host should be cut.
+     */
+    private static boolean isCongestion(IOException error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Register that block of the channel is finished, either downloaded or failed to start,
+     * and close channel if it was the last one.
+     *
+     * @param channel Channel to inspect for closing.
+     */
+    private void releaseChannel(BlockWriter channel) {
+        DownloadTask finished = null;
+        synchronized (this) {
+            if (outputFilesMap.containsKey(channel)) {
+                Integer curVal = outputFilesMap.get(channel);
+                curVal--;
+                if (curVal == 0) {
+                    outputFilesMap.remove(channel);
+                    finished = outputTasksMap.remove(channel);
+                } else {
+                    outputFilesMap.put(channel, curVal);
                 }
-            } else {
-                outputFilesMap.put(channel, curVal);
             }
         }
 
-        totalBytesDownloaded += bytesDownloaded;
-        LOGGER.debug("I have downloaded {} bytes", bytesDownloaded);
+        if (finished != null) {
+            commitTask(finished, channel);
+        }
+    }
 
-        synchronized (this) {
-            currentThreadsAvailable++;
-            LOGGER.debug("Finish task. Current threads available = {}", currentThreadsAvailable);
-            this.notify();
+    /**
+     * Registers that all blocks of task are finished and commits its file
+     * as soon as archive extraction, if any, is over.
+     *
+     * @param task Task whose blocks are all finished.
+     * @param channel Output of task.
+     */
+    private void commitTask(final DownloadTask task, final BlockWriter channel) {
+        long bytes = task.getBytesDownloaded();
+        if (task.getError() == null && task.getContentSize() >= 0 && bytes != task.getContentSize()) {
+            task.setError(new IOException("Downloaded " + bytes + " bytes of " + task.getContentSize()));
+        }
+        task.setBlocksFinished();
+
+        // archive is committed when it is extracted, so that extracted files are complete when future is
+        CompletableFuture<Void> extraction = extractions.remove(task);
+        if (extraction != null) {
+            extraction.whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(Void result, Throwable error) {
+                    if (error != null) {
+                        task.setError(error);
+                    }
+                    commitExtracted(task, channel);
+                }
+            });
+            return;
+        }
+        commitExtracted(task, channel);
+    }
+
+    /**
+     * Moves file of finished task to its target name if all blocks succeeded and archive is extracted,
+     * otherwise just closes output. Resource written to channel is already where it belongs.
+     *
+     * @param task Task whose blocks are all finished.
+     * @param channel Output of task.
+     */
+    private void commitExtracted(final DownloadTask task, BlockWriter channel) {
+        if (task.isStopped() || task.getSink() != null) {
+            try {
+                channel.close();
+                LOGGER.debug("Channel closed");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            finishTask(task, task.getSink() == null);
+            return;
+        }
+
+        FileChannel file = ((FileBlockWriter) channel).getChannel();
+        fileCommitter.commit(file, task.getTempTarget(), task.getTarget(), new FileCommitter.CommitCallback() {
+            public void committed(IOException error) {
+                if (error != null) {
+                    error.printStackTrace();
+                    task.setError(error);
+                }
+                finishTask(task, true);
+            }
+        });
+    }
+
+    /**
+     * Completes future of the file and notifies listeners.
+     *
+     * @param task Finished file.
+     * @param fileCreated Whether temporary file was created and should be removed if download failed or cancelled.
+     */
+    private void finishTask(DownloadTask task, boolean fileCreated) {
+        CompletableFuture<DownloadResult> future = task.getFuture();
+        long bytes = task.getBytesDownloaded();
+
+        if (task.getError() != null) {
+            future.completeExceptionally(task.getError());
+        } else {
+            future.complete(new DownloadResult(task.getAddress(), task.getTarget(), bytes,
+                    System.currentTimeMillis() - task.getStartTime()));
+        }
+
+        // partial file of failed or cancelled download is never renamed, so it is of no use
+        if (future.isCompletedExceptionally() && fileCreated) {
+            try {
+                Files.deleteIfExists(task.getTempTarget());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // bytes downloaded since the last progress report still count for throughput of host
+        Long reported = reportedBytes.remove(task);
+        addHostBytes(task, bytes - ((reported != null) ? reported : 0));
+        for (ProgressListener listener : progressListeners) {
+            listener.finished(task);
+        }
+
+        synchronized (pendingTasks) {
+            pendingTasks.remove(task);
+            pendingTasks.notifyAll();
         }
     }
 
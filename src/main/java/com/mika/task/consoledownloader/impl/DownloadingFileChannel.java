@@ -0,0 +1,181 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.DownloadTask;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only channel of file that is still being downloaded. Read waits till bytes at
+ * channel position are written by any block, so the file can be read from any position
+ * while blocks are downloading in parallel.
+ *
+ * Optional tail of resource that is fetched separately is served from memory,
+ * so that formats with index at the end can be opened before the last block arrives.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class DownloadingFileChannel implements SeekableByteChannel {
+    /**
+     * Task that writes the file.
+     */
+    private final DownloadTask task;
+
+    /**
+     * Channel to read written bytes from.
+     */
+    private final FileChannel file;
+
+    /**
+     * Tail of resource, null if it is not fetched.
+     */
+    private final byte[] tail;
+
+    /**
+     * Current position.
+     */
+    private long position;
+
+    /**
+     * Interval between checks of task state while waiting, in milliseconds.
+     */
+    private static final int WAIT_INTERVAL = 500;
+
+    /**
+     * Constructor.
+     *
+     * @param downloadTask Task that writes the file.
+     * @param path File to read.
+     * @param resourceTail Last bytes of resource fetched separately, may be null.
+     * @throws IOException if file can not be opened.
+     */
+    DownloadingFileChannel(DownloadTask downloadTask, Path path, byte[] resourceTail) throws IOException {
+        Assert.notNull(downloadTask, "Task must be not null");
+        Assert.isTrue(resourceTail == null || downloadTask.getContentSize() >= resourceTail.length,
+                "Tail requires known size of resource");
+
+        task = downloadTask;
+        tail = resourceTail;
+        file = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        long size = task.getContentSize();
+        if (tail != null && position >= size - tail.length) {
+            if (position >= size) {
+                return -1;
+            }
+            int offset = (int) (position - (size - tail.length));
+            int n = Math.min(dst.remaining(), tail.length - offset);
+            dst.put(tail, offset, n);
+            position += n;
+            return n;
+        }
+
+        long writtenUpTo = awaitBytes();
+        if (writtenUpTo == position) {
+            return -1;
+        }
+
+        int limit = dst.limit();
+        if (writtenUpTo - position < dst.remaining()) {
+            dst.limit(dst.position() + (int) (writtenUpTo - position));
+        }
+        try {
+            int n = file.read(dst, position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Waits till byte at position is written or download is over.
+     *
+     * @return end of written range that starts at position, position itself at the end of file.
+     */
+    private long awaitBytes() throws IOException {
+        try {
+            while (true) {
+                if (task.isStopped()) {
+                    throw new IOException("Download of " + task.getAddress() + " is stopped");
+                }
+                long writtenUpTo = task.awaitWritten(position, WAIT_INTERVAL);
+                if (writtenUpTo > position || task.isBlocksFinished()) {
+                    return task.getWrittenUpTo(position);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for download");
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        Assert.isTrue(newPosition >= 0, "Position must be not negative");
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        long size = task.getContentSize();
+        if (size >= 0) {
+            return size;
+        }
+
+        // size of resource without Content-Length is known only at the end
+        while (!task.isBlocksFinished()) {
+            if (task.isStopped()) {
+                throw new IOException("Download of " + task.getAddress() + " is stopped");
+            }
+            try {
+                task.awaitWritten(task.getWrittenUpTo(0), WAIT_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for download");
+            }
+        }
+        return task.getWrittenUpTo(0);
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return file.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,45 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.BlockWriter;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes blocks straight to their offsets in file.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class FileBlockWriter implements BlockWriter {
+    /**
+     * Channel of file to write to.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel Channel of file to write to.
+     */
+    FileBlockWriter(FileChannel fileChannel) {
+        Assert.notNull(fileChannel, "File channel must be not null");
+        channel = fileChannel;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        return channel.write(src, position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+}
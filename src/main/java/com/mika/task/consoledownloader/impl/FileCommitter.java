@@ -0,0 +1,278 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.Durability;
+import com.mika.task.consoledownloader.jfr.DiskWriteEvent;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves completed files from temporary names to target names, so that readers
+ * never see partially downloaded file under target name.
+ *
+ * With BATCH durability every file is flushed by the downloading thread that completed
+ * it, so files are flushed in parallel, and then this thread renames files in groups
+ * and flushes every folder of the group once. Many small files share one folder flush.
+ * With other durabilities files are committed right in commit().
+ *
+ * Temporary file of a failed commit is removed.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class FileCommitter implements Runnable {
+    /**
+     * Callback that is called when file is committed or failed to commit.
+     */
+    interface CommitCallback {
+        /**
+         * @param error Error of flushing or renaming, null if file is in place. Temporary file is removed on error.
+         */
+        void committed(IOException error);
+    }
+
+    /**
+     * File waiting for commit.
+     */
+    private static class Commit {
+        private final Path temp;
+        private final Path target;
+        private final CommitCallback callback;
+        private final long bytes;
+        private final IOException error;
+
+        Commit(Path temp, Path target, CommitCallback callback, long bytes, IOException error) {
+            this.temp = temp;
+            this.target = target;
+            this.callback = callback;
+            this.bytes = bytes;
+            this.error = error;
+        }
+    }
+
+    /**
+     * What is done to make files survive a crash.
+     */
+    private final Durability durability;
+
+    /**
+     * Files waiting for commit in BATCH mode.
+     */
+    private final BlockingQueue<Commit> queue;
+
+    /**
+     * Flag that helps to stop this thread safely.
+     */
+    private volatile boolean keepAlive;
+
+    /**
+     * Maximum number of files in one group.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * Interval between checks of keepAlive flag, in milliseconds.
+     */
+    private static final int POLL_INTERVAL = 100;
+
+    /**
+     * Logger to log messages.
+     */
+    private static final ch.qos.logback.classic.Logger LOGGER =
+            (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(FileCommitter.class);
+
+    /**
+     * Constructor.
+     *
+     * @param durability What is done to make files survive a crash.
+     */
+    FileCommitter(Durability durability) {
+        Assert.notNull(durability, "Durability must be not null");
+
+        this.durability = durability;
+        queue = new LinkedBlockingQueue<Commit>();
+        keepAlive = true;
+    }
+
+    /**
+     * Closes channel of completed file and moves it to target name. With BATCH durability
+     * file is flushed by the calling thread and renamed later by this thread.
+     *
+     * @param channel Channel of completed file, closed by committer.
+     * @param temp Temporary name of file.
+     * @param target Target name of file.
+     * @param callback Callback to call when file is committed.
+     */
+    void commit(FileChannel channel, Path temp, Path target, CommitCallback callback) {
+        DiskWriteEvent event = new DiskWriteEvent();
+        long bytes = fileSize(event, channel);
+        IOException error = null;
+        if (durability == Durability.BATCH) {
+            try {
+                flush(channel, true);
+            } catch (IOException e) {
+                error = e;
+            }
+            queue.add(new Commit(temp, target, callback, bytes, error));
+            return;
+        }
+
+        event.begin();
+        try {
+            flush(channel, durability == Durability.SYNC);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (durability == Durability.SYNC) {
+                syncFolder(target.toAbsolutePath().getParent());
+            }
+        } catch (IOException e) {
+            error = e;
+            removeTemp(temp);
+        }
+        commitEvent(event, 1, bytes, (error != null) ? 1 : 0);
+        callback.committed(error);
+    }
+
+    /**
+     * Stops this threads` work. Files already passed to commit() are committed first.
+     */
+    void shutdown() {
+        keepAlive = false;
+    }
+
+    @Override
+    public void run() {
+        while (keepAlive || !queue.isEmpty()) {
+            List<Commit> batch = new ArrayList<Commit>();
+            try {
+                Commit commit = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (commit != null) {
+                    // files completed while the previous group was flushed form the next group, nothing waits for a timer
+                    batch.add(commit);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            if (!batch.isEmpty()) {
+                commitBatch(batch);
+            }
+        }
+        LOGGER.debug("File committer is stopped");
+    }
+
+    private void commitBatch(List<Commit> batch) {
+        DiskWriteEvent event = new DiskWriteEvent();
+        event.begin();
+        long bytes = 0;
+        int failed = 0;
+
+        IOException[] errors = new IOException[batch.size()];
+        Set<Path> folders = new LinkedHashSet<Path>();
+        for (int i = 0; i < batch.size(); i++) {
+            Commit commit = batch.get(i);
+            bytes += commit.bytes;
+            errors[i] = commit.error;
+            if (errors[i] == null) {
+                try {
+                    // file is already flushed by the thread that completed it
+                    Files.move(commit.temp, commit.target, StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    folders.add(commit.target.toAbsolutePath().getParent());
+                } catch (IOException e) {
+                    errors[i] = e;
+                }
+            }
+            if (errors[i] != null) {
+                removeTemp(commit.temp);
+                failed++;
+            }
+        }
+
+        // renames are durable only after folder is flushed
+        for (Path folder : folders) {
+            syncFolder(folder);
+        }
+        LOGGER.debug("Committed {} files in {} folders", batch.size(), folders.size());
+        commitEvent(event, batch.size(), bytes, failed);
+
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).callback.committed(errors[i]);
+        }
+    }
+
+    /**
+     * @return size of file if event is recorded, 0 otherwise.
+     */
+    private static long fileSize(DiskWriteEvent event, FileChannel channel) {
+        if (!event.isEnabled()) {
+            return 0;
+        }
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void commitEvent(DiskWriteEvent event, int files, long bytes, int failed) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.files = files;
+            event.bytes = bytes;
+            event.durability = durability.name();
+            event.failed = failed;
+            event.commit();
+        }
+    }
+
+    private static void flush(FileChannel channel, boolean force) throws IOException {
+        try {
+            if (force) {
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void removeTemp(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void syncFolder(Path folder) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(folder, StandardOpenOption.READ);
+            channel.force(true);
+        } catch (IOException e) {
+            // some platforms can not open folders, renames there are flushed by file system itself
+            LOGGER.debug("Folder {} can not be flushed: {}", folder, e.getMessage());
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
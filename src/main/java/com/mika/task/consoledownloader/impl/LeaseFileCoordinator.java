@@ -0,0 +1,433 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.ShardCoordinator;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ShardCoordinator that keeps claims as lease files in a folder shared by all processes,
+ * on one host or on several hosts with shared file system.
+ *
+ * For every link there may be files named after hash of the link:
+ * "hash.lease" - link is claimed, contains id of the owner. Owner replaces it with a fresh
+ * copy every heartbeat interval. Lease that was not renewed for lease timeout belongs to
+ * dead process and is taken over.
+ *
+ * Lease is never replaced or removed right after it is checked: it is moved aside first,
+ * checked there, and put back if it turns out to be live lease of another process.
+ * "hash.done" - link is downloaded, contains path of the file.
+ * "hash.failed" - link failed, contains error.
+ *
+ * Times are compared using modification times set by shared file system itself,
+ * so clocks of hosts need not be synchronized.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class LeaseFileCoordinator implements ShardCoordinator {
+    /**
+     * Shared folder with lease files.
+     */
+    private final Path folder;
+
+    /**
+     * Unique id of this process, contains only characters allowed in file names.
+     */
+    private final String workerId;
+
+    /**
+     * Time after which lease that was not renewed is considered dead, in milliseconds.
+     */
+    private final long leaseTimeout;
+
+    /**
+     * Hashes of links claimed by this process.
+     */
+    private final Set<String> ownedKeys;
+
+    /**
+     * File that is rewritten to learn current time of shared file system.
+     */
+    private final Path clockFile;
+
+    /**
+     * Time of shared file system when it was read last, in milliseconds.
+     */
+    private long clockTime;
+
+    /**
+     * Local time when shared file system time was read last, in nanoseconds.
+     */
+    private long clockReadAt;
+
+    /**
+     * Whether shared file system time was read at all.
+     */
+    private boolean clockRead;
+
+    /**
+     * Flag that helps to stop this thread safely.
+     */
+    private volatile boolean keepAlive;
+
+    /**
+     * Default lease timeout, can be changed with system property "consoledownloader.lease.timeout".
+     */
+    private static final long DEFAULT_LEASE_TIMEOUT = 30000;
+
+    /**
+     * Number of heartbeats during lease timeout.
+     */
+    private static final int HEARTBEATS_PER_TIMEOUT = 6;
+
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String FAILED_SUFFIX = ".failed";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String RENEW_SUFFIX = ".renew";
+    private static final String ASIDE_SUFFIX = ".aside";
+
+    /**
+     * Length of hash in file names, in hex digits.
+     */
+    private static final int KEY_LENGTH = 40;
+
+    /**
+     * Logger to log messages.
+     */
+    private static final ch.qos.logback.classic.Logger LOGGER =
+            (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(LeaseFileCoordinator.class);
+
+    /**
+     * Constructor with default lease timeout.
+     *
+     * @param sharedFolder Folder with lease files shared by all processes.
+     * @throws IOException if folder can not be used.
+     */
+    public LeaseFileCoordinator(String sharedFolder) throws IOException {
+        this(sharedFolder, Long.getLong("consoledownloader.lease.timeout", DEFAULT_LEASE_TIMEOUT));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sharedFolder Folder with lease files shared by all processes.
+     * @param timeout Time after which lease that was not renewed is considered dead, in milliseconds.
+     * @throws IOException if folder can not be used.
+     */
+    public LeaseFileCoordinator(String sharedFolder, long timeout) throws IOException {
+        Assert.notNull(sharedFolder, "Shared folder must be not null");
+        Assert.isTrue(timeout > 0, "Lease timeout must be positive value");
+
+        folder = FileSystems.getDefault().getPath(sharedFolder);
+        leaseTimeout = timeout;
+        String id = InetAddress.getLocalHost().getHostName() + "-" + ManagementFactory.getRuntimeMXBean().getName()
+                + "-" + UUID.randomUUID().toString().substring(0, 8);
+        workerId = id.replaceAll("[^A-Za-z0-9.-]", "_");
+        ownedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        keepAlive = true;
+
+        Files.createDirectories(folder);
+        clockFile = folder.resolve(workerId + ".clock");
+        LOGGER.info("Worker {} uses shared folder {}", workerId, folder);
+    }
+
+    @Override
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    @Override
+    public boolean tryClaim(String address) throws IOException {
+        String key = key(address);
+        if (ownedKeys.contains(key)) {
+            return true;
+        }
+        if (isFinished(address)) {
+            return false;
+        }
+
+        Path lease = folder.resolve(key + LEASE_SUFFIX);
+        if (!createLease(lease)) {
+            if (!takeOverDeadLease(lease)) {
+                return false;
+            }
+            if (!createLease(lease)) {
+                return false;
+            }
+            LOGGER.info("Took over lease of dead worker for {}", address);
+        }
+        ownedKeys.add(key);
+
+        // link may have been finished between the check and the claim
+        if (isFinished(address)) {
+            release(address);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOwned(String address) {
+        return ownedKeys.contains(key(address));
+    }
+
+    @Override
+    public boolean isFinished(String address) throws IOException {
+        String key = key(address);
+        return Files.exists(folder.resolve(key + DONE_SUFFIX)) || Files.exists(folder.resolve(key + FAILED_SUFFIX));
+    }
+
+    @Override
+    public String getDownloadedPath(String address) throws IOException {
+        Path done = folder.resolve(key(address) + DONE_SUFFIX);
+        try {
+            return new String(Files.readAllBytes(done), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void downloaded(String address, String path) throws IOException {
+        writeAtomically(folder.resolve(key(address) + DONE_SUFFIX), path);
+        release(address);
+    }
+
+    @Override
+    public void failed(String address, String error) throws IOException {
+        writeAtomically(folder.resolve(key(address) + FAILED_SUFFIX), address + " " + error);
+        release(address);
+    }
+
+    @Override
+    public synchronized void release(String address) {
+        String key = key(address);
+        if (!ownedKeys.remove(key)) {
+            return;
+        }
+        Path lease = folder.resolve(key + LEASE_SUFFIX);
+        try {
+            Path aside = moveAside(lease);
+            if (aside != null) {
+                if (isOwnLease(aside)) {
+                    Files.delete(aside);
+                } else {
+                    putBack(aside, lease);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops this threads` work.
+     */
+    public void shutdown() {
+        keepAlive = false;
+        try {
+            Files.deleteIfExists(clockFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        // renew leases several times during lease timeout
+        while (keepAlive) {
+            for (String key : ownedKeys) {
+                try {
+                    renew(key);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                Thread.sleep(leaseTimeout / HEARTBEATS_PER_TIMEOUT);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Replaces lease with a fresh copy, so that its modification time is renewed and other
+     * processes never see it half-written. Lease that is gone or belongs to another process
+     * is not replaced and the link stops being owned.
+     *
+     * @param key Hash of link.
+     * @throws IOException if shared storage is not available.
+     */
+    private synchronized void renew(String key) throws IOException {
+        // released while heartbeat went through owned links
+        if (!ownedKeys.contains(key)) {
+            return;
+        }
+
+        Path lease = folder.resolve(key + LEASE_SUFFIX);
+        Path fresh = lease.resolveSibling(lease.getFileName() + "." + clockFile.getFileName() + RENEW_SUFFIX);
+        Files.write(fresh, workerId.getBytes(StandardCharsets.UTF_8));
+        boolean renewed = false;
+        try {
+            // lease is checked after it is moved aside, so that lease of another process is never replaced
+            Path aside = moveAside(lease);
+            if (aside != null) {
+                if (isOwnLease(aside)) {
+                    // lease created by another process while there was none wins
+                    renewed = putBack(fresh, lease);
+                    Files.delete(aside);
+                } else {
+                    putBack(aside, lease);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(fresh);
+        }
+
+        if (!renewed) {
+            LOGGER.error("Lease {} was taken over by another worker", lease.getFileName());
+            ownedKeys.remove(key);
+        }
+    }
+
+    private boolean createLease(Path lease) throws IOException {
+        try {
+            Files.write(lease, workerId.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private boolean takeOverDeadLease(Path lease) throws IOException {
+        try {
+            if (!isDead(lease)) {
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            // released just now
+            return true;
+        }
+
+        // only one of competing workers manages to move dead lease away
+        Path dead = moveAside(lease);
+        if (dead == null) {
+            return false;
+        }
+        // lease may have been renewed or taken over by another worker between the check and the move
+        if (!isDead(dead)) {
+            putBack(dead, lease);
+            return false;
+        }
+        Files.delete(dead);
+        return true;
+    }
+
+    /**
+     * @param lease Lease file.
+     * @return true if lease was not renewed for lease timeout.
+     * @throws NoSuchFileException if there is no lease.
+     */
+    private boolean isDead(Path lease) throws IOException {
+        return fileSystemTime() - Files.getLastModifiedTime(lease).toMillis() > leaseTimeout;
+    }
+
+    /**
+     * Moves lease to a name of this process, so that nobody else can replace or remove it while it is checked.
+     *
+     * @param lease Lease file.
+     * @return lease moved aside or null if there is no lease.
+     */
+    private Path moveAside(Path lease) throws IOException {
+        Path aside = lease.resolveSibling(lease.getFileName() + "." + clockFile.getFileName() + ASIDE_SUFFIX);
+        try {
+            Files.move(lease, aside, StandardCopyOption.ATOMIC_MOVE);
+            return aside;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Moves file to lease name unless another lease was created there meanwhile, then file is removed.
+     *
+     * @param file Lease moved aside or fresh copy of lease.
+     * @param lease Lease file.
+     * @return true if file is moved.
+     */
+    private boolean putBack(Path file, Path lease) throws IOException {
+        try {
+            Files.move(file, lease);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            Files.delete(file);
+            return false;
+        }
+    }
+
+    private boolean isOwnLease(Path lease) throws IOException {
+        try {
+            return workerId.equals(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads time of shared file system by rewriting clock file once per heartbeat interval,
+     * and counts local time passed since then, so that checks of many leases in one poll
+     * round do not write to shared storage each.
+     *
+     * @return current time of shared file system, in milliseconds.
+     */
+    private synchronized long fileSystemTime() throws IOException {
+        long now = System.nanoTime();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(now - clockReadAt);
+        if (clockRead && elapsed < leaseTimeout / HEARTBEATS_PER_TIMEOUT) {
+            return clockTime + elapsed;
+        }
+
+        Files.write(clockFile, workerId.getBytes(StandardCharsets.UTF_8));
+        clockTime = Files.getLastModifiedTime(clockFile).toMillis();
+        clockReadAt = now;
+        clockRead = true;
+        return clockTime;
+    }
+
+    private void writeAtomically(Path file, String content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + clockFile.getFileName() + TMP_SUFFIX);
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String key(String address) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(address.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.substring(0, KEY_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
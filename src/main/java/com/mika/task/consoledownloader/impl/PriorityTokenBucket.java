@@ -0,0 +1,181 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.Priority;
+import com.mika.task.consoledownloader.TokenBucket;
+import org.springframework.util.Assert;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TokenBucket that splits download speed limit between priority classes
+ * according to their weights. Bandwidth of classes that have not asked
+ * for tokens during the last second is given to the active ones. Idle class
+ * that asks for tokens gets its weighted part of tokens left in the active
+ * shares right away, instead of waiting for the next split.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class PriorityTokenBucket implements TokenBucket {
+    /**
+     * Download speed limit.
+     */
+    private final long speedLimit;
+
+    /**
+     * Bucket for every priority class.
+     */
+    private final Map<Priority, TokenBucketImpl> shares;
+
+    /**
+     * Classes whose shares were refilled with nothing by the last split. Guarded by this.
+     */
+    private final Set<Priority> idle;
+
+    /**
+     * Flag that helps to stop this thread safely.
+     */
+    private volatile boolean keepAlive;
+
+    /**
+     * Time to sleep before refreshing bandwidth to desired value.
+     */
+    private static final int TIME_TO_SLEEP = 1000;
+
+    /**
+     * Constructor.
+     * @param bytesPerSecond download speed limit.
+     */
+    PriorityTokenBucket(long bytesPerSecond) {
+        Assert.isTrue(bytesPerSecond > 0, "Speed Limit must be positive value");
+
+        speedLimit = bytesPerSecond;
+        keepAlive = true;
+
+        idle = EnumSet.noneOf(Priority.class);
+        shares = new EnumMap<Priority, TokenBucketImpl>(Priority.class);
+        for (final Priority p : Priority.values()) {
+            shares.put(p, new TokenBucketImpl(bytesPerSecond, new Runnable() {
+                public void run() {
+                    activate(p);
+                }
+            }));
+        }
+        redistribute();
+    }
+
+    /**
+     * @param priority priority class.
+     * @return bucket that limits speed of links of specified priority class.
+     */
+    TokenBucket getShare(Priority priority) {
+        Assert.notNull(priority, "Priority must be not null");
+        return shares.get(priority);
+    }
+
+    /**
+     * Stops this threads` work.
+     */
+    public void shutdown() {
+        keepAlive = false;
+    }
+
+    @Override
+    public void run() {
+        // every 1 second split bandwidth between active priority classes
+        while (keepAlive) {
+            redistribute();
+
+            try {
+                Thread.sleep(TIME_TO_SLEEP);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Splits bandwidth between classes that asked for tokens since the previous call.
+     */
+    synchronized void redistribute() {
+        Map<Priority, Boolean> active = new EnumMap<Priority, Boolean>(Priority.class);
+        int totalWeight = 0;
+        for (Map.Entry<Priority, TokenBucketImpl> entry : shares.entrySet()) {
+            boolean demanded = entry.getValue().consumeDemand();
+            active.put(entry.getKey(), demanded);
+            if (demanded) {
+                totalWeight += entry.getKey().getWeight();
+            }
+        }
+
+        // nobody is downloading at the moment: give every class its static share
+        boolean anyActive = totalWeight > 0;
+        if (!anyActive) {
+            for (Priority p : Priority.values()) {
+                totalWeight += p.getWeight();
+            }
+        }
+
+        idle.clear();
+        for (Map.Entry<Priority, TokenBucketImpl> entry : shares.entrySet()) {
+            Priority p = entry.getKey();
+            if (anyActive && !active.get(p)) {
+                idle.add(p);
+                entry.getValue().refill(0, true);
+            } else {
+                entry.getValue().refill(speedLimit * p.getWeight() / totalWeight, false);
+            }
+        }
+    }
+
+    /**
+     * Gives idle class that asks for tokens its weighted part of tokens left in the shares of active classes.
+     *
+     * @param priority class that became active.
+     */
+    synchronized void activate(Priority priority) {
+        if (!idle.remove(priority)) {
+            return;
+        }
+        long activeWeight = 0;
+        for (Priority p : Priority.values()) {
+            if (!idle.contains(p) && p != priority) {
+                activeWeight += p.getWeight();
+            }
+        }
+
+        long tokens = 0;
+        long weight = priority.getWeight();
+        for (Map.Entry<Priority, TokenBucketImpl> entry : shares.entrySet()) {
+            Priority p = entry.getKey();
+            if (!idle.contains(p) && p != priority) {
+                tokens += entry.getValue().takePart(weight, activeWeight + weight);
+            }
+        }
+        shares.get(priority).refill(tokens, false);
+    }
+
+    @Override
+    public boolean getTokens(long n) {
+        Assert.isTrue(n >= 0, "Tokens amount must be not negative");
+
+        for (Priority p : Priority.values()) {
+            if (shares.get(p).getTokens(n)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getTokensLeft() {
+        long left = 0;
+        for (TokenBucketImpl share : shares.values()) {
+            left += share.getTokensLeft();
+        }
+        return left;
+    }
+}
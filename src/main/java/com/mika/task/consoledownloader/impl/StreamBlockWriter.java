@@ -0,0 +1,186 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.BlockWriter;
+import com.mika.task.consoledownloader.DownloadTask;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Writes blocks to channel strictly in order of resource bytes, so that blocks downloaded
+ * in parallel can go to standard output, a pipe or any other channel without seeking.
+ *
+ * Bytes at the write cursor go to the channel right away, bytes ahead of it are kept in
+ * reorder buffer. Block that is more than capacity ahead of the cursor waits till earlier
+ * blocks catch up, so memory stays bounded. Block at the cursor never waits for room.
+ *
+ * Channel is written without holding the lock, so a slow reader of the channel does not
+ * stop other blocks from being buffered. Blocks that come in order while one thread writes
+ * are buffered and written by that thread after its own bytes.
+ *
+ * Channel is not closed by this writer, it belongs to the caller.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+class StreamBlockWriter implements BlockWriter {
+    /**
+     * Task whose resource is written.
+     */
+    private final DownloadTask task;
+
+    /**
+     * Channel to write resource to.
+     */
+    private final WritableByteChannel out;
+
+    /**
+     * Maximum distance between the cursor and the end of buffered bytes.
+     */
+    private final long capacity;
+
+    /**
+     * Bytes ahead of the cursor, by offset in resource. Guarded by this.
+     */
+    private final NavigableMap<Long, ByteBuffer> pending;
+
+    /**
+     * Offset of the next byte to write to channel, bytes before it are written or being written. Guarded by this.
+     */
+    private long cursor;
+
+    /**
+     * Whether a thread is writing to channel. Guarded by this.
+     */
+    private boolean writing;
+
+    /**
+     * Whether writer is closed. Guarded by this.
+     */
+    private boolean closed;
+
+    /**
+     * Interval between checks of task state while waiting, in milliseconds.
+     */
+    private static final int WAIT_INTERVAL = 500;
+
+    /**
+     * Constructor.
+     *
+     * @param downloadTask Task whose resource is written.
+     * @param channel Channel to write resource to.
+     * @param bufferCapacity Maximum distance between the cursor and the end of buffered bytes.
+     */
+    StreamBlockWriter(DownloadTask downloadTask, WritableByteChannel channel, long bufferCapacity) {
+        Assert.notNull(downloadTask, "Task must be not null");
+        Assert.notNull(channel, "Channel to write to must be not null");
+        Assert.isTrue(bufferCapacity > 0, "Buffer capacity must be positive value");
+
+        task = downloadTask;
+        out = channel;
+        capacity = bufferCapacity;
+        pending = new TreeMap<Long, ByteBuffer>();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        int n = src.remaining();
+        List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+
+        synchronized (this) {
+            while (position > cursor && position + n > cursor + capacity) {
+                // blocks ahead are stopped too, when the one at the cursor fails
+                if (closed || task.isStopped()) {
+                    throw new ClosedChannelException();
+                }
+                try {
+                    this.wait(WAIT_INTERVAL);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for earlier blocks");
+                }
+            }
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            if (position > cursor || writing) {
+                ByteBuffer copy = ByteBuffer.allocate(n);
+                copy.put(src);
+                copy.flip();
+                pending.put(position, copy);
+                return n;
+            }
+
+            writing = true;
+            cursor += n;
+            batch.add(src);
+            // bytes of the following blocks may be in order now
+            pollInOrder(batch);
+            this.notifyAll();
+        }
+
+        boolean written = false;
+        try {
+            while (!batch.isEmpty()) {
+                for (ByteBuffer buf : batch) {
+                    writeFully(buf);
+                }
+                batch.clear();
+                synchronized (this) {
+                    pollInOrder(batch);
+                    if (batch.isEmpty()) {
+                        writing = false;
+                    }
+                    this.notifyAll();
+                }
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                // part of bytes may be written, the following blocks can not go after them
+                synchronized (this) {
+                    writing = false;
+                    closed = true;
+                    pending.clear();
+                    this.notifyAll();
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Moves buffered bytes that are at the cursor to the batch and advances the cursor past them.
+     */
+    private void pollInOrder(List<ByteBuffer> batch) {
+        while (!pending.isEmpty() && pending.firstKey() == cursor) {
+            ByteBuffer next = pending.pollFirstEntry().getValue();
+            cursor += next.remaining();
+            batch.add(next);
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * Drops buffered bytes and wakes up blocks waiting for room. Channel stays open.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        this.notifyAll();
+    }
+}
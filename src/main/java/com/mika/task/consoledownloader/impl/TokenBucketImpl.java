@@ -7,6 +7,9 @@ import org.springframework.util.Assert;
  * Simple implementation of TokenBucket algorithm for traffic shaping.
  * Refer to http://en.wikipedia.org/wiki/Token_bucket
  *
+ * Bucket is refilled by its own thread or by PriorityTokenBucket and drained by
+ * downloading threads, so the count of tokens is guarded by this.
+ *
  * @author Mikhail Gushinets
  * @since 01/09/2014
  */
@@ -17,10 +20,25 @@ class TokenBucketImpl implements TokenBucket {
     private long speedLimit;
 
     /**
-     * How many more tokens are available in the bucket at the moment.
+     * How many more tokens are available in the bucket at the moment. Guarded by this.
      */
     private long currentTokensCount;
 
+    /**
+     * Whether somebody asked for tokens since the last check. Guarded by this.
+     */
+    private boolean demanded;
+
+    /**
+     * Whether bucket was refilled as share of idle priority class. Guarded by this.
+     */
+    private boolean idle;
+
+    /**
+     * Called when bucket of idle class is asked for tokens, null if nobody listens.
+     */
+    private final Runnable activationListener;
+
     /**
      * Flag that helps to stop this thread safely.
      */
@@ -36,10 +54,20 @@ class TokenBucketImpl implements TokenBucket {
      * @param bytesPerSecond download speed limit.
      */
     TokenBucketImpl(long bytesPerSecond) {
+        this(bytesPerSecond, null);
+    }
+
+    /**
+     * Constructor of share of PriorityTokenBucket.
+     * @param bytesPerSecond download speed limit.
+     * @param listener called on the asking thread when bucket of idle class is asked for tokens, may be null.
+     */
+    TokenBucketImpl(long bytesPerSecond, Runnable listener) {
         Assert.isTrue(bytesPerSecond > 0, "Speed Limit must be positive value");
 
         speedLimit = bytesPerSecond;
         keepAlive = true;
+        activationListener = listener;
     }
 
     /**
@@ -53,7 +81,7 @@ class TokenBucketImpl implements TokenBucket {
     public void run() {
         // every 1 second refresh bandwidth to desired value
         while (keepAlive) {
-            currentTokensCount = speedLimit;
+            refill(speedLimit, false);
 
             try {
                 Thread.currentThread().sleep(TIME_TO_SLEEP);
@@ -63,8 +91,44 @@ class TokenBucketImpl implements TokenBucket {
         }
     }
 
+    /**
+     * Refreshes bandwidth to specified value.
+     * Used when bucket is refilled by PriorityTokenBucket instead of its own thread.
+     *
+     * @param tokens amount of tokens available till the next refill.
+     * @param idleShare whether bucket is share of priority class that did not ask for tokens.
+     */
+    synchronized void refill(long tokens, boolean idleShare) {
+        currentTokensCount = tokens;
+        idle = idleShare;
+    }
+
+    /**
+     * Removes part of tokens left in the bucket.
+     *
+     * @param numerator numerator of the part.
+     * @param denominator denominator of the part.
+     * @return amount of tokens removed.
+     */
+    synchronized long takePart(long numerator, long denominator) {
+        long part = currentTokensCount * numerator / denominator;
+        currentTokensCount -= part;
+        return part;
+    }
+
+    /**
+     * Checks whether somebody asked for tokens since the last call and resets the flag.
+     *
+     * @return true if tokens were requested.
+     */
+    synchronized boolean consumeDemand() {
+        boolean wasDemanded = demanded;
+        demanded = false;
+        return wasDemanded;
+    }
+
     @Override
-    public boolean getTokens(long n) {
+    public synchronized boolean getTokens(long n) {
         Assert.isTrue(n >= 0, "Tokens amount must be not negative");
 
         if (n <= currentTokensCount) {
@@ -77,6 +141,18 @@ class TokenBucketImpl implements TokenBucket {
 
     @Override
     public long getTokensLeft() {
-        return currentTokensCount;
+        boolean activated;
+        synchronized (this) {
+            demanded = true;
+            activated = idle;
+            idle = false;
+        }
+        // listener moves tokens into this bucket, so it is called without holding the lock
+        if (activated && activationListener != null) {
+            activationListener.run();
+        }
+        synchronized (this) {
+            return currentTokensCount;
+        }
     }
 }
@@ -0,0 +1,49 @@
+package com.mika.task.consoledownloader.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Block of resource from start of downloading thread till it is complete or failed.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+@Name("com.mika.task.consoledownloader.Block")
+@Label("Block Download")
+@Description("Block of resource from start of downloading thread till it is complete or failed.")
+@Category({"ConsoleDownloader"})
+@StackTrace(false)
+public class BlockEvent extends Event {
+    /**
+     * Downloaded link.
+     */
+    @Label("URL")
+    public String url;
+
+    /**
+     * Offset of block in resource.
+     */
+    @Label("Offset")
+    @DataAmount
+    public long offset;
+
+    /**
+     * Length of block, -1 if block is read till the end of stream.
+     */
+    @Label("Length")
+    @DataAmount
+    public long length;
+
+    /**
+     * Bytes read by block.
+     */
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    /**
+     * Error that stopped block, null if block is downloaded.
+     */
+    @Label("Error")
+    public String error;
+}
@@ -0,0 +1,34 @@
+package com.mika.task.consoledownloader.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Connection and request till response headers are received, one event per attempt.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+@Name("com.mika.task.consoledownloader.Connect")
+@Label("HTTP Connect")
+@Description("Connection and request till response headers are received, one event per attempt.")
+@Category({"ConsoleDownloader"})
+@StackTrace(false)
+public class ConnectEvent extends Event {
+    /**
+     * Downloaded link.
+     */
+    @Label("URL")
+    public String url;
+
+    /**
+     * Value of Range header, null if whole resource is requested.
+     */
+    @Label("Range")
+    public String range;
+
+    /**
+     * Response code, 0 if no response was received.
+     */
+    @Label("Status")
+    public int status;
+}
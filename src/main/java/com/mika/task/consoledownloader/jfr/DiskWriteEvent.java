@@ -0,0 +1,41 @@
+package com.mika.task.consoledownloader.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Completed files are flushed and renamed to target names, folders are flushed once per batch.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+@Name("com.mika.task.consoledownloader.DiskWrite")
+@Label("Disk Write Batch")
+@Description("Completed files are flushed and renamed to target names, folders are flushed once per batch.")
+@Category({"ConsoleDownloader"})
+@StackTrace(false)
+public class DiskWriteEvent extends Event {
+    /**
+     * Number of files in batch.
+     */
+    @Label("Files")
+    public int files;
+
+    /**
+     * Total size of files in batch.
+     */
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    /**
+     * Durability of completed files.
+     */
+    @Label("Durability")
+    public String durability;
+
+    /**
+     * Number of files that failed to commit.
+     */
+    @Label("Failed")
+    public int failed;
+}
@@ -0,0 +1,36 @@
+package com.mika.task.consoledownloader.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Time from start of block till its first bytes are read.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+@Name("com.mika.task.consoledownloader.FirstByte")
+@Label("First Byte")
+@Description("Time from start of block till its first bytes are read.")
+@Category({"ConsoleDownloader"})
+@StackTrace(false)
+public class FirstByteEvent extends Event {
+    /**
+     * Downloaded link.
+     */
+    @Label("URL")
+    public String url;
+
+    /**
+     * Offset of block in resource.
+     */
+    @Label("Offset")
+    @DataAmount
+    public long offset;
+
+    /**
+     * Length of block, -1 if block is read till the end of stream.
+     */
+    @Label("Length")
+    @DataAmount
+    public long length;
+}
@@ -0,0 +1,41 @@
+package com.mika.task.consoledownloader.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * HEAD request that asks web server about size of resource and partial download support.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+@Name("com.mika.task.consoledownloader.Probe")
+@Label("HTTP Probe")
+@Description("HEAD request that asks web server about size of resource and partial download support.")
+@Category({"ConsoleDownloader"})
+@StackTrace(false)
+public class ProbeEvent extends Event {
+    /**
+     * Downloaded link.
+     */
+    @Label("URL")
+    public String url;
+
+    /**
+     * Response code.
+     */
+    @Label("Status")
+    public int status;
+
+    /**
+     * Size of resource, -1 if unknown.
+     */
+    @Label("Content Size")
+    @DataAmount
+    public long contentSize;
+
+    /**
+     * Whether web server supports partial download.
+     */
+    @Label("Partial Content")
+    public boolean partialContent;
+}
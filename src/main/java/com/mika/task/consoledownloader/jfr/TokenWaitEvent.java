@@ -0,0 +1,36 @@
+package com.mika.task.consoledownloader.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Block waits for tokens of download speed limit.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+@Name("com.mika.task.consoledownloader.TokenWait")
+@Label("Token Wait")
+@Description("Block waits for tokens of download speed limit.")
+@Category({"ConsoleDownloader"})
+@StackTrace(false)
+public class TokenWaitEvent extends Event {
+    /**
+     * Downloaded link.
+     */
+    @Label("URL")
+    public String url;
+
+    /**
+     * Offset of block in resource.
+     */
+    @Label("Offset")
+    @DataAmount
+    public long offset;
+
+    /**
+     * Bytes of block read before the wait.
+     */
+    @Label("Position")
+    @DataAmount
+    public long position;
+}
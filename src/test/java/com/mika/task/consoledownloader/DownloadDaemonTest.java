@@ -0,0 +1,262 @@
+package com.mika.task.consoledownloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of daemon line protocol against download manager that only records submitted tasks.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class DownloadDaemonTest {
+    /**
+     * Download manager that keeps submitted tasks, futures are completed by tests.
+     */
+    private static class RecordingManager implements DownloadManager {
+        private final List<DownloadTask> tasks = new ArrayList<DownloadTask>();
+
+        /**
+         * Whether submit() fails like in manager that is shut down.
+         */
+        private volatile boolean stopped;
+
+        public void startDownload() {
+        }
+
+        public CompletableFuture<DownloadResult> submit(String address, Path target, Priority priority) {
+            throw new UnsupportedOperationException();
+        }
+
+        public CompletableFuture<DownloadResult> submit(String address, WritableByteChannel sink, Priority priority) {
+            throw new UnsupportedOperationException();
+        }
+
+        public synchronized CompletableFuture<DownloadResult> submit(DownloadTask task) {
+            if (stopped) {
+                throw new IllegalStateException("Download manager is shut down");
+            }
+            tasks.add(task);
+            return task.getFuture();
+        }
+
+        public void addProgressListener(ProgressListener listener) {
+        }
+
+        public void removeProgressListener(ProgressListener listener) {
+        }
+
+        public void shutdown() {
+        }
+
+        synchronized DownloadTask get(int k) {
+            return tasks.get(k);
+        }
+
+        synchronized int size() {
+            return tasks.size();
+        }
+    }
+
+    /**
+     * Time to wait for daemon to start listening, in milliseconds.
+     */
+    private static final int START_TIMEOUT = 5000;
+
+    private RecordingManager manager;
+    private DownloadDaemon daemon;
+    private Thread daemonThread;
+    private Path outFolder;
+    private Path spoolFolder;
+    private Socket socket;
+    private BufferedReader in;
+    private PrintWriter out;
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new RecordingManager();
+        outFolder = Files.createTempDirectory("daemon-test");
+        spoolFolder = Files.createTempDirectory("daemon-spool");
+
+        ServerSocket probe = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        int port = probe.getLocalPort();
+        probe.close();
+
+        daemon = new DownloadDaemon(manager, outFolder.toString(), port, spoolFolder.toString());
+        daemonThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    daemon.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        daemonThread.start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try {
+                socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                break;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        daemon.shutdown();
+        daemonThread.join(START_TIMEOUT);
+        Files.deleteIfExists(outFolder);
+        for (File f : spoolFolder.toFile().listFiles()) {
+            f.delete();
+        }
+        Files.deleteIfExists(spoolFolder);
+    }
+
+    private String send(String command) throws IOException {
+        out.println(command);
+        return in.readLine();
+    }
+
+    /**
+     * Puts file into spool folder under temporary name and renames it, like writers must do.
+     */
+    private void spool(String name, byte[] content) throws IOException {
+        Path temp = spoolFolder.resolve(name + ".tmp");
+        Files.write(temp, content);
+        Files.move(temp, spoolFolder.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<String> awaitReport(String name) throws Exception {
+        Path report = spoolFolder.resolve(name + ".report");
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (!Files.exists(report) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        return Files.readAllLines(report, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void submittedJobsGetIdsInOrder() throws Exception {
+        assertEquals("OK 1", send("SUBMIT http://example.com/a a.bin"));
+        assertEquals("OK 2", send("SUBMIT http://example.com/b b.bin high"));
+
+        assertEquals(1, manager.get(0).getLineNumber());
+        assertEquals(Priority.HIGH, manager.get(1).getPriority());
+        assertEquals(outFolder.resolve("b.bin"), manager.get(1).getTarget());
+    }
+
+    @Test
+    public void statusFollowsJob() throws Exception {
+        send("SUBMIT http://example.com/a a.bin");
+        assertEquals("1 QUEUED 0 -1", send("STATUS 1"));
+
+        DownloadTask task = manager.get(0);
+        task.setStartTime(System.currentTimeMillis());
+        task.setProbeResult(10, true);
+        assertEquals("1 RUNNING 0 10", send("STATUS 1"));
+
+        task.getFuture().complete(new DownloadResult(task.getAddress(), task.getTarget(), 10, 1));
+        assertEquals("1 DONE 0 10", send("WAIT 1"));
+    }
+
+    @Test
+    public void cancelledJobIsReported() throws Exception {
+        send("SUBMIT http://example.com/a a.bin");
+
+        assertEquals("OK", send("CANCEL 1"));
+        assertEquals("1 CANCELLED 0 -1", send("STATUS 1"));
+    }
+
+    @Test
+    public void listEndsWithEnd() throws Exception {
+        send("SUBMIT http://example.com/a a.bin");
+        send("SUBMIT http://example.com/b b.bin");
+
+        out.println("list");
+        assertEquals("1 QUEUED 0 -1", in.readLine());
+        assertEquals("2 QUEUED 0 -1", in.readLine());
+        assertEquals("END", in.readLine());
+    }
+
+    @Test
+    public void errorsDoNotCloseConnection() throws Exception {
+        assertEquals("ERROR Unknown command: FETCH", send("FETCH 1"));
+        assertEquals("ERROR Unknown job: 7", send("STATUS 7"));
+        assertEquals("ERROR Unknown job: x", send("CANCEL x"));
+        assertTrue(send("SUBMIT http://example.com/a").startsWith("ERROR Too few tokens"));
+        assertTrue(send("SUBMIT http://example.com/a ../a.bin").startsWith("ERROR File must be inside output folder"));
+
+        // rejected lines take ids too, ids only have to grow
+        assertTrue(send("SUBMIT http://example.com/a a.bin").startsWith("OK "));
+    }
+
+    @Test
+    public void unreadableSpoolFileIsReported() throws Exception {
+        spool("bad.txt", new byte[] {(byte) 0xff, (byte) 0xfe, '\n'});
+        spool("good.txt", "http://example.com/a a.bin\n".getBytes(StandardCharsets.UTF_8));
+
+        List<String> report = awaitReport("bad.txt");
+        assertEquals(1, report.size());
+        assertTrue(report.get(0).startsWith("ERROR Can not read bad.txt"));
+        assertFalse(Files.exists(spoolFolder.resolve("bad.txt.accepted")));
+
+        // the other file is not held up by the bad one
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (manager.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("http://example.com/a", manager.get(0).getAddress());
+    }
+
+    @Test
+    public void spoolFileRejectedByManagerIsReported() throws Exception {
+        manager.stopped = true;
+        spool("a.txt", "http://example.com/a a.bin\n".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Arrays.asList("ERROR Download manager is shut down"), awaitReport("a.txt"));
+        assertFalse(Files.exists(spoolFolder.resolve("a.txt.accepted")));
+        assertEquals("ERROR Unknown job: 1", send("STATUS 1"));
+
+        // spool folder is still polled
+        spool("b.txt", "http://example.com/b b.bin\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("ERROR Download manager is shut down"), awaitReport("b.txt"));
+    }
+
+    @Test
+    public void shutdownStopsDaemon() throws Exception {
+        assertEquals("OK", send("SHUTDOWN"));
+
+        daemonThread.join(START_TIMEOUT);
+        assertFalse(daemonThread.isAlive());
+    }
+}
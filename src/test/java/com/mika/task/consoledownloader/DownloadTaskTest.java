@@ -0,0 +1,70 @@
+package com.mika.task.consoledownloader;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of parsing lines of file with links.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class DownloadTaskTest {
+
+    @Test
+    public void linkAndFileNameAreRequired() {
+        DownloadTask task = DownloadTask.fromLine("http://example.com/a.zip a.zip", "/tmp/out", 7);
+
+        assertEquals("http://example.com/a.zip", task.getAddress());
+        assertEquals(Paths.get("/tmp/out", "a.zip"), task.getTarget());
+        assertEquals(Priority.NORMAL, task.getPriority());
+        assertEquals(7, task.getLineNumber());
+        assertFalse(task.isExtract());
+    }
+
+    @Test
+    public void priorityIsThirdToken() {
+        DownloadTask task = DownloadTask.fromLine("http://example.com/a.zip a.zip high", "/tmp/out", 1);
+
+        assertEquals(Priority.HIGH, task.getPriority());
+        assertFalse(task.isExtract());
+    }
+
+    @Test
+    public void extractTokenGoesWithOrWithoutPriority() {
+        assertTrue(DownloadTask.fromLine("http://example.com/a.zip a.zip extract", "/tmp/out", 1).isExtract());
+
+        DownloadTask task = DownloadTask.fromLine("http://example.com/a.zip a.zip low extract", "/tmp/out", 1);
+        assertEquals(Priority.LOW, task.getPriority());
+        assertTrue(task.isExtract());
+    }
+
+    @Test
+    public void temporaryFileIsNextToTarget() {
+        DownloadTask task = DownloadTask.fromLine("http://example.com/a.zip a.zip", "/tmp/out", 1);
+        assertEquals(Paths.get("/tmp/out", "a.zip" + DownloadTask.PART_SUFFIX), task.getTempTarget());
+
+        task.setTempSuffix(".part.worker1");
+        assertEquals(Paths.get("/tmp/out", "a.zip.part.worker1"), task.getTempTarget());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lineWithoutFileNameIsRejected() {
+        DownloadTask.fromLine("http://example.com/a.zip", "/tmp/out", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTokenIsRejected() {
+        DownloadTask.fromLine("http://example.com/a.zip a.zip urgent", "/tmp/out", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void priorityAfterExtractIsRejected() {
+        DownloadTask.fromLine("http://example.com/a.zip a.zip extract high", "/tmp/out", 1);
+    }
+}
@@ -0,0 +1,134 @@
+package com.mika.task.consoledownloader.impl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of number of connections learned for one host.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class AimdConnectionControllerTest {
+    private static final String HOST = "example.com:80";
+
+    /**
+     * Length of interval that makes controller evaluate throughput right away, in milliseconds.
+     */
+    private static final long INTERVAL = 2000;
+
+    @Test
+    public void unknownHostStartsWithTwoConnections() throws Exception {
+        AimdConnectionController controller = new AimdConnectionController(8, null);
+
+        assertEquals(2, controller.getConnections(HOST));
+    }
+
+    @Test
+    public void limitClimbsWhileThroughputGrows() throws Exception {
+        AimdConnectionController controller = new AimdConnectionController(8, null);
+
+        controller.transferred(HOST, 2000000, INTERVAL, 2);
+        assertEquals(3, controller.getConnections(HOST));
+        controller.transferred(HOST, 3000000, INTERVAL, 3);
+        assertEquals(4, controller.getConnections(HOST));
+        controller.transferred(HOST, 4000000, INTERVAL, 4);
+        assertEquals(5, controller.getConnections(HOST));
+    }
+
+    @Test
+    public void unsaturatedIntervalsDoNotPinLimit() throws Exception {
+        AimdConnectionController controller = new AimdConnectionController(8, null);
+        controller.transferred(HOST, 2000000, INTERVAL, 2);
+        assertEquals(3, controller.getConnections(HOST));
+
+        // host keeps using two connections of three, which tells nothing about the third one
+        for (int i = 0; i < 5; i++) {
+            controller.transferred(HOST, 2000000, INTERVAL, 2);
+        }
+        assertEquals(3, controller.getConnections(HOST));
+
+        // as soon as the third connection is used and helps, the limit climbs again
+        controller.transferred(HOST, 3000000, INTERVAL, 3);
+        assertEquals(4, controller.getConnections(HOST));
+    }
+
+    @Test
+    public void limitIsCutOnPlateau() throws Exception {
+        AimdConnectionController controller = new AimdConnectionController(8, null);
+        controller.transferred(HOST, 2000000, INTERVAL, 2);
+        controller.transferred(HOST, 3000000, INTERVAL, 3);
+        assertEquals(4, controller.getConnections(HOST));
+
+        controller.transferred(HOST, 3000000, INTERVAL, 4);
+
+        assertEquals(3, controller.getConnections(HOST));
+    }
+
+    @Test
+    public void limitIsHalvedOnceOnCongestion() throws Exception {
+        AimdConnectionController controller = new AimdConnectionController(8, null);
+        controller.transferred(HOST, 2000000, INTERVAL, 2);
+        controller.transferred(HOST, 3000000, INTERVAL, 3);
+        assertEquals(4, controller.getConnections(HOST));
+
+        controller.congested(HOST);
+        // refusals that come right after are the same congestion event
+        controller.congested(HOST);
+
+        assertEquals(2, controller.getConnections(HOST));
+    }
+
+    @Test
+    public void limitNeverExceedsMaximum() throws Exception {
+        AimdConnectionController controller = new AimdConnectionController(3, null);
+        controller.transferred(HOST, 2000000, INTERVAL, 2);
+        controller.transferred(HOST, 3000000, INTERVAL, 3);
+
+        assertEquals(3, controller.getConnections(HOST));
+    }
+
+    @Test
+    public void bestConnectionsAreUsedInNextRun() throws Exception {
+        File file = File.createTempFile("connections", ".properties");
+        file.delete();
+        try {
+            AimdConnectionController controller = new AimdConnectionController(8, file.getPath());
+            controller.transferred(HOST, 2000000, INTERVAL, 2);
+            controller.transferred(HOST, 3000000, INTERVAL, 3);
+            controller.transferred(HOST, 3000000, INTERVAL, 4);
+            controller.save();
+
+            AimdConnectionController next = new AimdConnectionController(8, file.getPath());
+            assertEquals(3, next.getConnections(HOST));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void saveReplacesFileAndLeavesNoTemporaryFiles() throws Exception {
+        File folder = Files.createTempDirectory("connections").toFile();
+        File file = new File(folder, "connections.properties");
+        try {
+            Files.write(file.toPath(), "other.com\\:80=5\n".getBytes(StandardCharsets.ISO_8859_1));
+            AimdConnectionController controller = new AimdConnectionController(8, file.getPath());
+            controller.transferred(HOST, 2000000, INTERVAL, 2);
+            controller.save();
+
+            assertArrayEquals(new String[] {file.getName()}, folder.list());
+            AimdConnectionController next = new AimdConnectionController(8, file.getPath());
+            assertEquals(2, next.getConnections(HOST));
+            assertEquals(5, next.getConnections("other.com:80"));
+        } finally {
+            file.delete();
+            folder.delete();
+        }
+    }
+}
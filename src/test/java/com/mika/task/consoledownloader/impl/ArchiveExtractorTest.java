@@ -0,0 +1,163 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.DownloadTask;
+import com.mika.task.consoledownloader.Priority;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of extraction of archives whose blocks are still being written.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class ArchiveExtractorTest {
+    private static final int ENTRIES = 4;
+    private static final int ENTRY_SIZE = 64 * 1024;
+
+    /**
+     * Size of the first block, it holds the first entry and a part of the second one.
+     */
+    private static final int FIRST_BLOCK = 100 * 1024;
+
+    /**
+     * Time to wait for extraction, in milliseconds.
+     */
+    private static final long TIMEOUT = 10000;
+
+    private Path folder;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("extract-test");
+    }
+
+    @After
+    public void tearDown() {
+        delete(folder.toFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] entry(int k) {
+        byte[] bytes = new byte[ENTRY_SIZE];
+        new Random(k).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] zip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+        for (int k = 0; k < ENTRIES; k++) {
+            zip.putArchiveEntry(new ZipArchiveEntry("entry" + k + ".bin"));
+            zip.write(entry(k));
+            zip.closeArchiveEntry();
+        }
+        zip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] tarGz() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(out));
+        for (int k = 0; k < ENTRIES; k++) {
+            TarArchiveEntry entry = new TarArchiveEntry("entry" + k + ".bin");
+            entry.setSize(ENTRY_SIZE);
+            tar.putArchiveEntry(entry);
+            tar.write(entry(k));
+            tar.closeArchiveEntry();
+        }
+        tar.close();
+        return out.toByteArray();
+    }
+
+    private static void writeBlock(FileChannel file, DownloadTask task, byte[] archive, int start, int length)
+            throws IOException {
+        file.write(ByteBuffer.wrap(archive, start, length), start);
+        task.addBytesWritten(start, length);
+    }
+
+    /**
+     * Writes archive in two blocks and checks that the first entry is extracted before the second block is written.
+     */
+    private void extractWhileWritten(String name, ArchiveExtractor.Format format, final byte[] archive)
+            throws Exception {
+        DownloadTask task = new DownloadTask("http://example.com/" + name, folder.resolve(name), Priority.NORMAL, 1,
+                true);
+        task.setProbeResult(archive.length, true);
+        FileChannel file = FileChannel.open(task.getTempTarget(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            writeBlock(file, task, archive, 0, FIRST_BLOCK);
+            ArchiveExtractor extractor = new ArchiveExtractor(task, format,
+                    new ArchiveExtractor.RangeFetcher() {
+                        public byte[] fetch(DownloadTask archiveTask, long start, int length) {
+                            return Arrays.copyOfRange(archive, (int) start, (int) start + length);
+                        }
+                    });
+            Thread thread = new Thread(extractor);
+            thread.setDaemon(true);
+            thread.start();
+
+            Path first = folder.resolve("a").resolve("entry0.bin");
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!(Files.exists(first) && Files.size(first) == ENTRY_SIZE) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(TIMEOUT / 200);
+            }
+
+            assertArrayEquals(entry(0), Files.readAllBytes(first));
+            assertFalse(extractor.getFuture().isDone());
+
+            writeBlock(file, task, archive, FIRST_BLOCK, archive.length - FIRST_BLOCK);
+            task.setBlocksFinished();
+            extractor.getFuture().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            file.close();
+        }
+
+        for (int k = 0; k < ENTRIES; k++) {
+            assertArrayEquals(entry(k), Files.readAllBytes(folder.resolve("a").resolve("entry" + k + ".bin")));
+        }
+        assertEquals(ENTRIES, folder.resolve("a").toFile().list().length);
+    }
+
+    @Test
+    public void firstZipEntryIsExtractedBeforeLastBlockIsWritten() throws Exception {
+        // local headers of the later entries are not written yet, zip is opened without them
+        extractWhileWritten("a.zip", ArchiveExtractor.Format.ZIP, zip());
+    }
+
+    @Test
+    public void firstTarGzEntryIsExtractedBeforeLastBlockIsWritten() throws Exception {
+        extractWhileWritten("a.tar.gz", ArchiveExtractor.Format.TAR_GZ, tarGz());
+    }
+}
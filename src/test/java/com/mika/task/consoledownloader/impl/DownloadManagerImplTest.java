@@ -0,0 +1,297 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.DownloadResult;
+import com.mika.task.consoledownloader.DownloadTask;
+import com.mika.task.consoledownloader.Priority;
+import com.mika.task.consoledownloader.ProgressListener;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of parsing responses to the first ranged request and of submitting files
+ * to download manager against local web server.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class DownloadManagerImplTest {
+    /**
+     * Size of every resource of web server.
+     */
+    private static final int SIZE = 64 * 1024;
+
+    /**
+     * Bytes that resources of slow path send before waiting for release.
+     */
+    private static final int SLOW_PART = 1024;
+
+    /**
+     * Time to wait for download, in milliseconds.
+     */
+    private static final long TIMEOUT = 10000;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private String base;
+    private Path folder;
+
+    /**
+     * Lets resources of slow path send the rest of their bytes.
+     */
+    private CountDownLatch release;
+
+    /**
+     * Number of requests of every path.
+     */
+    private Map<String, AtomicInteger> requests;
+
+    private DownloadManagerImpl manager;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("manager-test");
+        release = new CountDownLatch(1);
+        requests = new ConcurrentHashMap<String, AtomicInteger>();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (manager != null) {
+            manager.shutdown();
+        }
+        server.stop(0);
+        serverThreads.shutdownNow();
+        delete(folder.toFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Bytes of resource, the same for every path.
+     */
+    private static byte[] content() {
+        byte[] bytes = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            bytes[i] = (byte) (i * 31 + i / 251);
+        }
+        return bytes;
+    }
+
+    /**
+     * Sends requested range of resource. Paths that start with /slow send a part and wait for release.
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.putIfAbsent(path, new AtomicInteger());
+        requests.get(path).incrementAndGet();
+
+        byte[] bytes = content();
+        int start = 0;
+        int end = SIZE - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(Integer.parseInt(bounds[1]), SIZE - 1);
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, SIZE);
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        try {
+            int length = end - start + 1;
+            int first = path.startsWith("/slow") ? Math.min(SLOW_PART, length) : length;
+            out.write(bytes, start, first);
+            out.flush();
+            if (first < length) {
+                release.await();
+                out.write(bytes, start + first, length - first);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (IOException e) {
+            // client that stopped the download closes connection
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private int requestsOf(String path) {
+        AtomicInteger count = requests.get(path);
+        return (count != null) ? count.get() : 0;
+    }
+
+    private DownloadTask task(String path) {
+        return new DownloadTask(base + path, folder.resolve(path.substring(1)), Priority.NORMAL, 1);
+    }
+
+    @Test
+    public void totalSizeIsTakenFromContentRange() {
+        assertEquals(1234, DownloadManagerImpl.parseTotalSize("bytes 0-499/1234"));
+        assertEquals(5000000000L, DownloadManagerImpl.parseTotalSize("bytes 0-4999999999/5000000000"));
+    }
+
+    @Test
+    public void unknownTotalSizeIsNegative() {
+        assertEquals(-1, DownloadManagerImpl.parseTotalSize("bytes 0-499/*"));
+    }
+
+    @Test
+    public void missingOrMalformedContentRangeIsNegative() {
+        assertEquals(-1, DownloadManagerImpl.parseTotalSize(null));
+        assertEquals(-1, DownloadManagerImpl.parseTotalSize("bytes 0-499"));
+        assertEquals(-1, DownloadManagerImpl.parseTotalSize("bytes 0-499/abc"));
+    }
+
+    @Test
+    public void futureCompletesWithResultOfDownload() throws Exception {
+        manager = new DownloadManagerImpl(2, 0);
+        final CountDownLatch finished = new CountDownLatch(1);
+        manager.addProgressListener(new ProgressListener() {
+            public void progress(DownloadTask task) {
+            }
+
+            public void finished(DownloadTask task) {
+                finished.countDown();
+            }
+        });
+        Path target = folder.resolve("a.bin");
+
+        DownloadResult result = manager.submit(base + "/a.bin", target, Priority.HIGH)
+                .get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertEquals(base + "/a.bin", result.getAddress());
+        assertEquals(target, result.getTarget());
+        assertEquals(SIZE, result.getBytesDownloaded());
+        assertArrayEquals(content(), Files.readAllBytes(target));
+        assertTrue(finished.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancelledQueuedFileIsNeverRequested() throws Exception {
+        // the only downloading thread is busy with the slow file
+        manager = new DownloadManagerImpl(1, 0);
+        CompletableFuture<DownloadResult> slow = manager.submit(task("/slow.bin"));
+        DownloadTask queued = task("/queued.bin");
+        CompletableFuture<DownloadResult> future = manager.submit(queued);
+
+        assertTrue(future.cancel(true));
+        release.countDown();
+        slow.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        manager.shutdown();
+
+        assertEquals(0, requestsOf("/queued.bin"));
+        assertFalse(Files.exists(queued.getTarget()));
+        assertFalse(Files.exists(queued.getTempTarget()));
+    }
+
+    @Test
+    public void cancelledRunningFileLeavesNoPartialFile() throws Exception {
+        manager = new DownloadManagerImpl(1, 0);
+        final CountDownLatch finished = new CountDownLatch(1);
+        manager.addProgressListener(new ProgressListener() {
+            public void progress(DownloadTask task) {
+            }
+
+            public void finished(DownloadTask task) {
+                finished.countDown();
+            }
+        });
+        DownloadTask task = task("/slow.bin");
+        CompletableFuture<DownloadResult> future = manager.submit(task);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (task.getBytesDownloaded() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(TIMEOUT / 200);
+        }
+        assertTrue(Files.exists(task.getTempTarget()));
+
+        assertTrue(future.cancel(true));
+        // block stuck in read finds out about cancel with the next bytes
+        release.countDown();
+
+        assertTrue(finished.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(Files.exists(task.getTempTarget()));
+        assertFalse(Files.exists(task.getTarget()));
+    }
+
+    @Test
+    public void shutdownWaitsForSubmittedFiles() throws Exception {
+        manager = new DownloadManagerImpl(2, 0);
+        List<CompletableFuture<DownloadResult>> futures = new ArrayList<CompletableFuture<DownloadResult>>();
+        futures.add(manager.submit(task("/slow.bin")));
+        for (int k = 0; k < 3; k++) {
+            futures.add(manager.submit(task("/file" + k + ".bin")));
+        }
+        Thread releaser = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(TIMEOUT / 20);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                release.countDown();
+            }
+        });
+        releaser.start();
+
+        manager.shutdown();
+
+        for (CompletableFuture<DownloadResult> future : futures) {
+            assertTrue(future.isDone());
+            assertEquals(SIZE, future.get().getBytesDownloaded());
+        }
+        assertArrayEquals(content(), Files.readAllBytes(folder.resolve("slow.bin")));
+    }
+}
@@ -0,0 +1,153 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.Durability;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of moving completed files to their target names.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class FileCommitterTest {
+    /**
+     * Time to wait for commit, in milliseconds.
+     */
+    private static final long TIMEOUT = 5000;
+
+    private static final byte[] CONTENT = "complete file".getBytes(StandardCharsets.UTF_8);
+
+    private Path folder;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("commit-test");
+    }
+
+    @After
+    public void tearDown() {
+        delete(folder.toFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes content to temporary file and leaves it open, like the last block does.
+     */
+    private static FileChannel writeTemp(Path temp) throws IOException {
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.wrap(CONTENT));
+        return channel;
+    }
+
+    /**
+     * Callback that completes future with error of commit, or with null.
+     */
+    private static FileCommitter.CommitCallback callback(final CompletableFuture<IOException> result) {
+        return new FileCommitter.CommitCallback() {
+            public void committed(IOException error) {
+                result.complete(error);
+            }
+        };
+    }
+
+    @Test
+    public void batchedFileAppearsOnlyAfterCommit() throws Exception {
+        FileCommitter committer = new FileCommitter(Durability.BATCH);
+        Path temp = folder.resolve("a.bin.part");
+        Path target = folder.resolve("a.bin");
+        CompletableFuture<IOException> result = new CompletableFuture<IOException>();
+
+        committer.commit(writeTemp(temp), temp, target, callback(result));
+
+        // committer thread is not started yet, file waits under temporary name
+        assertFalse(Files.exists(target));
+        assertTrue(Files.exists(temp));
+
+        Thread thread = new Thread(committer);
+        thread.start();
+        try {
+            assertNull(result.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            committer.shutdown();
+            thread.join(TIMEOUT);
+        }
+        assertArrayEquals(CONTENT, Files.readAllBytes(target));
+        assertFalse(Files.exists(temp));
+    }
+
+    @Test
+    public void syncFileIsInPlaceWhenCommitReturns() throws Exception {
+        FileCommitter committer = new FileCommitter(Durability.SYNC);
+        Path temp = folder.resolve("a.bin.part");
+        Path target = folder.resolve("a.bin");
+        CompletableFuture<IOException> result = new CompletableFuture<IOException>();
+
+        committer.commit(writeTemp(temp), temp, target, callback(result));
+
+        assertTrue(result.isDone());
+        assertNull(result.get());
+        assertArrayEquals(CONTENT, Files.readAllBytes(target));
+        assertFalse(Files.exists(temp));
+    }
+
+    @Test
+    public void failedBatchedCommitRemovesTempFile() throws Exception {
+        FileCommitter committer = new FileCommitter(Durability.BATCH);
+        Path temp = folder.resolve("a.bin.part");
+        Path target = folder.resolve("missing").resolve("a.bin");
+        CompletableFuture<IOException> result = new CompletableFuture<IOException>();
+
+        committer.commit(writeTemp(temp), temp, target, callback(result));
+        Thread thread = new Thread(committer);
+        thread.start();
+        try {
+            assertNotNull(result.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            committer.shutdown();
+            thread.join(TIMEOUT);
+        }
+        assertFalse(Files.exists(temp));
+        assertFalse(Files.exists(target));
+    }
+
+    @Test
+    public void failedImmediateCommitRemovesTempFile() throws Exception {
+        FileCommitter committer = new FileCommitter(Durability.NONE);
+        Path temp = folder.resolve("a.bin.part");
+        Path target = folder.resolve("missing").resolve("a.bin");
+        CompletableFuture<IOException> result = new CompletableFuture<IOException>();
+
+        committer.commit(writeTemp(temp), temp, target, callback(result));
+
+        assertNotNull(result.get());
+        assertFalse(Files.exists(temp));
+    }
+}
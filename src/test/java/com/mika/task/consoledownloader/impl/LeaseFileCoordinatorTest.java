@@ -0,0 +1,162 @@
+package com.mika.task.consoledownloader.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of claims shared by two coordinators through one folder.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class LeaseFileCoordinatorTest {
+    /**
+     * Lease timeout of coordinators, heartbeat is six times shorter.
+     */
+    private static final long TIMEOUT = 600;
+
+    private static final String LINK = "http://example.com/a.bin";
+
+    private Path folder;
+    private LeaseFileCoordinator first;
+    private LeaseFileCoordinator second;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("lease-test");
+        first = new LeaseFileCoordinator(folder.toString(), TIMEOUT);
+        second = new LeaseFileCoordinator(folder.toString(), TIMEOUT);
+    }
+
+    @After
+    public void tearDown() {
+        first.shutdown();
+        second.shutdown();
+        for (File f : folder.toFile().listFiles()) {
+            f.delete();
+        }
+        folder.toFile().delete();
+    }
+
+    private static Thread startHeartbeat(LeaseFileCoordinator coordinator) {
+        Thread heartbeat = new Thread(coordinator);
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        return heartbeat;
+    }
+
+    @Test
+    public void claimedLinkIsNotClaimedByOthers() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+
+        assertFalse(second.tryClaim(LINK));
+        assertTrue(first.isOwned(LINK));
+        assertFalse(second.isOwned(LINK));
+    }
+
+    @Test
+    public void renewedLeaseIsNotTakenOver() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+        startHeartbeat(first);
+
+        Thread.sleep(2 * TIMEOUT);
+
+        assertFalse(second.tryClaim(LINK));
+        assertTrue(first.isOwned(LINK));
+    }
+
+    @Test
+    public void deadLeaseIsTakenOverAfterTimeout() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+        assertFalse(second.tryClaim(LINK));
+
+        // first stops renewing its lease as if its process died
+        Thread.sleep(TIMEOUT + TIMEOUT / 2);
+
+        assertTrue(second.tryClaim(LINK));
+        assertTrue(second.isOwned(LINK));
+    }
+
+    @Test
+    public void ownerDropsLinkTakenOverByOthers() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+        Thread.sleep(TIMEOUT + TIMEOUT / 2);
+        assertTrue(second.tryClaim(LINK));
+
+        startHeartbeat(first);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (first.isOwned(LINK) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(TIMEOUT / 10);
+        }
+
+        assertFalse(first.isOwned(LINK));
+        assertTrue(second.isOwned(LINK));
+        // lease of second is not overwritten by heartbeat of first
+        assertFalse(first.tryClaim(LINK));
+    }
+
+    @Test
+    public void releasedLeaseIsNotRenewed() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+        startHeartbeat(first);
+
+        first.release(LINK);
+        Thread.sleep(TIMEOUT / 2);
+
+        assertTrue(second.tryClaim(LINK));
+    }
+
+    @Test
+    public void releaseKeepsLeaseTakenOverByOthers() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+        Thread.sleep(TIMEOUT + TIMEOUT / 2);
+        assertTrue(second.tryClaim(LINK));
+
+        // first has not noticed the takeover yet, its lease file is not there anymore
+        first.release(LINK);
+
+        assertTrue(second.isOwned(LINK));
+        LeaseFileCoordinator third = new LeaseFileCoordinator(folder.toString(), TIMEOUT);
+        try {
+            assertFalse(third.tryClaim(LINK));
+        } finally {
+            third.shutdown();
+        }
+        assertEquals(1, folder.toFile().list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".lease");
+            }
+        }).length);
+    }
+
+    @Test
+    public void finishedLinkIsNotClaimed() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+        first.downloaded(LINK, "/tmp/out/a.bin");
+
+        assertFalse(first.isOwned(LINK));
+        assertTrue(second.isFinished(LINK));
+        assertFalse(second.tryClaim(LINK));
+        assertEquals("/tmp/out/a.bin", second.getDownloadedPath(LINK));
+    }
+
+    @Test
+    public void failedLinkIsNotClaimed() throws Exception {
+        assertTrue(first.tryClaim(LINK));
+        first.failed(LINK, "404");
+
+        assertTrue(second.isFinished(LINK));
+        assertFalse(second.tryClaim(LINK));
+        assertEquals(null, second.getDownloadedPath(LINK));
+    }
+}
@@ -0,0 +1,86 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.Priority;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of bandwidth split between priority classes.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class PriorityTokenBucketTest {
+
+    @Test
+    public void idleClassesGetStaticShares() {
+        PriorityTokenBucket bucket = new PriorityTokenBucket(700);
+
+        assertEquals(400, bucket.getShare(Priority.HIGH).getTokensLeft());
+        assertEquals(200, bucket.getShare(Priority.NORMAL).getTokensLeft());
+        assertEquals(100, bucket.getShare(Priority.LOW).getTokensLeft());
+    }
+
+    @Test
+    public void shareOfIdleClassGoesToActiveOnes() {
+        PriorityTokenBucket bucket = new PriorityTokenBucket(500);
+        bucket.getShare(Priority.HIGH).getTokensLeft();
+        bucket.getShare(Priority.LOW).getTokensLeft();
+
+        bucket.redistribute();
+
+        assertEquals(400, bucket.getShare(Priority.HIGH).getTokensLeft());
+        assertEquals(100, bucket.getShare(Priority.LOW).getTokensLeft());
+        assertFalse(bucket.getShare(Priority.NORMAL).getTokens(1));
+    }
+
+    @Test
+    public void singleActiveClassGetsWholeLimit() {
+        PriorityTokenBucket bucket = new PriorityTokenBucket(700);
+        bucket.getShare(Priority.LOW).getTokensLeft();
+
+        bucket.redistribute();
+
+        assertEquals(700, bucket.getShare(Priority.LOW).getTokensLeft());
+        assertFalse(bucket.getShare(Priority.HIGH).getTokens(1));
+    }
+
+    @Test
+    public void idleClassGetsTokensRightAway() {
+        PriorityTokenBucket bucket = new PriorityTokenBucket(700);
+        bucket.getShare(Priority.LOW).getTokensLeft();
+        bucket.redistribute();
+        assertTrue(bucket.getShare(Priority.LOW).getTokens(200));
+
+        // HIGH weighs 4 against 1 of LOW, so it takes 4/5 of what LOW has left
+        assertEquals(400, bucket.getShare(Priority.HIGH).getTokensLeft());
+        assertEquals(100, bucket.getShare(Priority.LOW).getTokensLeft());
+        assertEquals(400, bucket.getShare(Priority.HIGH).getTokensLeft());
+    }
+
+    @Test
+    public void staticSharesComeBackWhenEverybodyIsIdle() {
+        PriorityTokenBucket bucket = new PriorityTokenBucket(700);
+        bucket.getShare(Priority.LOW).getTokensLeft();
+        bucket.redistribute();
+
+        bucket.redistribute();
+
+        assertEquals(400, bucket.getShare(Priority.HIGH).getTokensLeft());
+        assertEquals(100, bucket.getShare(Priority.LOW).getTokensLeft());
+    }
+
+    @Test
+    public void anyClassServesTokensOfWholeBucket() {
+        PriorityTokenBucket bucket = new PriorityTokenBucket(700);
+
+        // every request is served by the first share that has enough tokens
+        assertTrue(bucket.getTokens(400));
+        assertTrue(bucket.getTokens(200));
+        assertTrue(bucket.getTokens(100));
+        assertFalse(bucket.getTokens(1));
+    }
+}
@@ -0,0 +1,190 @@
+package com.mika.task.consoledownloader.impl;
+
+import com.mika.task.consoledownloader.DownloadTask;
+import com.mika.task.consoledownloader.Priority;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of writing blocks downloaded in parallel to channel in order.
+ *
+ * @author Mikhail Gushinets
+ * @since 01/09/2014
+ */
+public class StreamBlockWriterTest {
+    private static final int BLOCK_SIZE = 4;
+
+    /**
+     * Time to wait for a write that must not block, in milliseconds.
+     */
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * Time that a write that has to block is given to finish, in milliseconds.
+     */
+    private static final long BLOCKED = 300;
+
+    private static DownloadTask task() {
+        return new DownloadTask("http://example.com/a.bin", Channels.newChannel(new ByteArrayOutputStream()),
+                Priority.NORMAL, 1);
+    }
+
+    /**
+     * Bytes of block k, each byte is the number of block.
+     */
+    private static byte[] block(int k) {
+        byte[] bytes = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            bytes[i] = (byte) k;
+        }
+        return bytes;
+    }
+
+    private static byte[] blocks(int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int k = 0; k < count; k++) {
+            out.write(block(k), 0, BLOCK_SIZE);
+        }
+        return out.toByteArray();
+    }
+
+    private static Future<Integer> writeAsync(ExecutorService executor, final StreamBlockWriter writer, final int k) {
+        return executor.submit(new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return writer.write(ByteBuffer.wrap(block(k)), (long) k * BLOCK_SIZE);
+            }
+        });
+    }
+
+    @Test
+    public void blocksWrittenOutOfOrderComeOutInOrder() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        StreamBlockWriter writer = new StreamBlockWriter(task(), Channels.newChannel(sink), 100);
+
+        writer.write(ByteBuffer.wrap(block(2)), 2 * BLOCK_SIZE);
+        writer.write(ByteBuffer.wrap(block(3)), 3 * BLOCK_SIZE);
+        writer.write(ByteBuffer.wrap(block(1)), BLOCK_SIZE);
+        // nothing can go to channel before the first block
+        assertEquals(0, sink.size());
+
+        writer.write(ByteBuffer.wrap(block(0)), 0);
+
+        assertArrayEquals(blocks(4), sink.toByteArray());
+    }
+
+    @Test
+    public void blockBeyondCapacityWaitsForEarlierBlocks() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        StreamBlockWriter writer = new StreamBlockWriter(task(), Channels.newChannel(sink), 2 * BLOCK_SIZE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // block 2 ends 3 blocks after the cursor, buffer holds 2
+            Future<Integer> third = writeAsync(executor, writer, 2);
+            try {
+                third.get(BLOCKED, TimeUnit.MILLISECONDS);
+                fail("Block beyond capacity is buffered");
+            } catch (TimeoutException e) {
+                // waits for room
+            }
+
+            writer.write(ByteBuffer.wrap(block(0)), 0);
+            assertEquals(BLOCK_SIZE, third.get(TIMEOUT, TimeUnit.MILLISECONDS).intValue());
+            writer.write(ByteBuffer.wrap(block(1)), BLOCK_SIZE);
+
+            assertArrayEquals(blocks(3), sink.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void slowChannelDoesNotStopBufferingOfOtherBlocks() throws Exception {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        WritableByteChannel slow = new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                int n = src.remaining();
+                byte[] bytes = new byte[n];
+                src.get(bytes);
+                sink.write(bytes, 0, n);
+                return n;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        StreamBlockWriter writer = new StreamBlockWriter(task(), slow, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> first = writeAsync(executor, writer, 0);
+            assertTrue(entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // the first block is stuck in channel, the next ones are buffered meanwhile
+            assertEquals(BLOCK_SIZE, writeAsync(executor, writer, 2).get(TIMEOUT, TimeUnit.MILLISECONDS).intValue());
+            assertEquals(BLOCK_SIZE, writeAsync(executor, writer, 1).get(TIMEOUT, TimeUnit.MILLISECONDS).intValue());
+            assertFalse(first.isDone());
+
+            release.countDown();
+            first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            assertArrayEquals(blocks(3), sink.toByteArray());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeFailsBlocksWaitingForRoom() throws Exception {
+        StreamBlockWriter writer = new StreamBlockWriter(task(), Channels.newChannel(new ByteArrayOutputStream()),
+                BLOCK_SIZE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> waiting = writeAsync(executor, writer, 2);
+            Thread.sleep(BLOCKED);
+            assertFalse(waiting.isDone());
+
+            writer.close();
+
+            try {
+                waiting.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("Block is written after writer is closed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ClosedChannelException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}